@@ -52,6 +52,7 @@ public class JobInstance
     private String keyword1, keyword2, keyword3, definitionKeyword1, definitionKeyword2, definitionKeyword3, module, email, application;
     private Map<String, String> parameters = new HashMap<String, String>();
     private Integer progress;
+    private Integer priority;
     @XmlElementWrapper(name = "messages")
     @XmlElement(name = "message", type = String.class)
     private List<String> messages = new ArrayList<String>();
@@ -195,6 +196,21 @@ public class JobInstance
         this.progress = progress;
     }
 
+    /**
+     * The priority of the job instance inside its queue. Job instances with a higher priority are run first. For waiting job instances, this
+     * may be higher than the priority given inside the {@link JobRequest} if priority aging is enabled.<br>
+     * <strong>This is the value retrieved during the latest {@link JqmClient#getJob(int)} call and may not be up to date!</strong>
+     */
+    public Integer getPriority()
+    {
+        return priority;
+    }
+
+    void setPriority(Integer priority)
+    {
+        this.priority = priority;
+    }
+
     /**
      * An optional list of strings that running user code may emit from time to time. Used to give an idea of the progress of the job
      * instance.<br>
@@ -44,6 +44,7 @@ public class JobRequest implements Serializable
     private String email = null;
     private String queueName = null;
     private Integer parentJobId = null;
+    private Integer priority = null;
     private Map<String, String> parameters = new HashMap<String, String>();
 
     JobRequest()
@@ -349,6 +350,30 @@ public class JobRequest implements Serializable
         return this;
     }
 
+    /**
+     * <strong>Optional</strong><br>
+     * The priority of the request inside its queue. Requests with a higher priority are run before requests with a lower one, whatever the
+     * order in which they were submitted. Default is null, which is the same as 0.
+     */
+    public Integer getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * <strong>Optional</strong><br>
+     * The priority of the request inside its queue. Requests with a higher priority are run before requests with a lower one, whatever the
+     * order in which they were submitted. Default is null, which is the same as 0.
+     * 
+     * @param priority
+     *            can be negative.
+     */
+    public JobRequest setPriority(Integer priority)
+    {
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * <strong>Optional</strong><br>
      * A job instance can be the child of another job instance. This allows you to retrieve the ID of that parent. It is null if there is no
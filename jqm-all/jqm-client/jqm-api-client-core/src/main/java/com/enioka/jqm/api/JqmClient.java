@@ -214,6 +214,21 @@ public interface JqmClient
      */
     void setJobQueuePosition(int jobId, int newPosition);
 
+    /**
+     * Change the priority of a waiting job instance inside its queue. Job instances with a higher priority are run before those with a
+     * lower one.
+     * 
+     * @param jobId
+     *            id of the job instance to modify
+     * @param priority
+     *            its new priority (can be negative)
+     * @throws JqmInvalidRequestException
+     *             when input data is invalid (job already run, job does not exist)
+     * @throws JqmClientException
+     *             when an internal API implementation occurs. Usually linked to a configuration issue.
+     */
+    void setJobPriority(int jobId, int priority);
+
     // /////////////////////////////////////////////////////////////////////
     // Job queries
     // /////////////////////////////////////////////////////////////////////
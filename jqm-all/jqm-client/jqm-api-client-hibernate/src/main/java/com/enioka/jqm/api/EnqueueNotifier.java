@@ -0,0 +1,84 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * In-JVM notification of job instance creation by the Hibernate client. It allows engines running inside the same JVM as the client (which
+ * is always the case for the engine API used by payloads) to poll a queue as soon as a new job instance is put inside it, instead of
+ * waiting for the end of their polling interval.
+ */
+public final class EnqueueNotifier
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(EnqueueNotifier.class);
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Name of the database notification channel used for the same purpose between JVMs, on databases which have such a thing.
+     */
+    public static final String CHANNEL = "jqm_enqueue";
+
+    /**
+     * Implemented by whatever wishes to be notified of new job instances.
+     */
+    public interface Listener
+    {
+        /**
+         * Called after the commit of a new job instance. Must return quickly, as this is called inside the thread of the client.
+         *
+         * @param queueId
+         *            ID of the queue inside which the job instance was created.
+         */
+        void jobInstanceCreated(int queueId);
+    }
+
+    private EnqueueNotifier()
+    {
+        // Static helper class only.
+    }
+
+    public static void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    static void jobInstanceCreated(int queueId)
+    {
+        for (Listener listener : listeners)
+        {
+            try
+            {
+                listener.jobInstanceCreated(queueId);
+            }
+            catch (RuntimeException e)
+            {
+                // A failed notification is not an issue: engines poll their queues anyway.
+                jqmlogger.warn("Could not notify a listener of a new job instance", e);
+            }
+        }
+    }
+}
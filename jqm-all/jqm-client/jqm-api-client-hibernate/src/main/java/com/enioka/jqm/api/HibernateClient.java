@@ -87,6 +87,7 @@ final class HibernateClient implements JqmClient
     private static final int IN_CLAUSE_LIMIT = 500;
     private EntityManagerFactory emf = null;
     private String protocol = null;
+    private Boolean dbNotifications = null;
     Properties p;
 
     // /////////////////////////////////////////////////////////////////////
@@ -191,6 +192,35 @@ final class HibernateClient implements JqmClient
         }
     }
 
+    /**
+     * The PostgreSQL notification channel is used only if the dialect is explicitly given in the properties, as there is no portable way to
+     * ask a JPA provider for its database type.
+     */
+    private boolean isPostgreSql()
+    {
+        Object dialect = emf.getProperties().get("hibernate.dialect");
+        return dialect != null && dialect.toString().toLowerCase().contains("postgres");
+    }
+
+    /**
+     * True if the engines listen to the database notification channel (pollerDbNotifications global parameter), read once per client.
+     */
+    private boolean useDbNotifications(EntityManager em)
+    {
+        if (dbNotifications == null)
+        {
+            dbNotifications = false;
+            if (isPostgreSql())
+            {
+                List<GlobalParameter> gps = em
+                        .createQuery("SELECT gp from GlobalParameter gp WHERE gp.key = 'pollerDbNotifications'", GlobalParameter.class)
+                        .getResultList();
+                dbNotifications = !gps.isEmpty() && Boolean.parseBoolean(gps.get(0).getValue());
+            }
+        }
+        return dbNotifications;
+    }
+
     private void closeQuietly(EntityManager em)
     {
         try
@@ -312,6 +342,7 @@ final class HibernateClient implements JqmClient
             ji.setKeyword3(jd.getKeyword3());
             ji.setModule(jd.getModule());
             ji.setProgress(0);
+            ji.setPriority(jd.getPriority() == null ? 0 : jd.getPriority());
             ji.setSessionID(jd.getSessionID());
             ji.setUserName(jd.getUser());
 
@@ -332,8 +363,18 @@ final class HibernateClient implements JqmClient
                 em.persist(ji.addParameter(jp.getKey(), jp.getValue()));
             }
 
+            // Cross-JVM wake up of the engines polling the queue. Only sent on commit by the database.
+            if (useDbNotifications(em))
+            {
+                em.createNativeQuery("SELECT pg_notify(?1, ?2) IS NULL").setParameter(1, EnqueueNotifier.CHANNEL)
+                        .setParameter(2, String.valueOf(q.getId())).getSingleResult();
+            }
+
             jqmlogger.trace("JI just created: " + ji.getId());
             em.getTransaction().commit();
+
+            // In-JVM wake up of the engines polling the queue.
+            EnqueueNotifier.jobInstanceCreated(q.getId());
             return ji.getId();
         }
         catch (NoResultException e)
@@ -508,6 +549,7 @@ final class HibernateClient implements JqmClient
             h.setKeyword2(ji.getKeyword2());
             h.setKeyword3(ji.getKeyword3());
             h.setProgress(ji.getProgress());
+            h.setPriority(ji.getPriority());
             h.setStatus(State.CANCELLED);
             h.setNode(ji.getNode());
             if (ji.getNode() != null)
@@ -869,6 +911,52 @@ final class HibernateClient implements JqmClient
         }
     }
 
+    @Override
+    public void setJobPriority(int idJob, int priority)
+    {
+        EntityManager em = null;
+        JobInstance ji = null;
+        try
+        {
+            em = getEm();
+            em.getTransaction().begin();
+            ji = em.find(JobInstance.class, idJob, LockModeType.PESSIMISTIC_WRITE);
+        }
+        catch (Exception e)
+        {
+            closeQuietly(em);
+            throw new JqmClientException(
+                    "Could not lock a job by the given ID. It may already have been executed or a timeout may have occurred.", e);
+        }
+
+        if (ji == null)
+        {
+            closeQuietly(em);
+            throw new JqmInvalidRequestException("No waiting job instance with ID " + idJob);
+        }
+        if (!ji.getState().equals(State.SUBMITTED))
+        {
+            closeQuietly(em);
+            throw new JqmInvalidRequestException("Job is already set for execution. Too late to change its priority");
+        }
+
+        try
+        {
+            // Setting the priority explicitly restarts aging from the new value.
+            ji.setPriority(priority);
+            ji.setPriorityAgingDate(null);
+            em.getTransaction().commit();
+        }
+        catch (Exception e)
+        {
+            throw new JqmClientException("could not change the priority of a job (internal error)", e);
+        }
+        finally
+        {
+            closeQuietly(em);
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////////
     // Job queries
     // /////////////////////////////////////////////////////////////////////
@@ -887,6 +975,7 @@ final class HibernateClient implements JqmClient
         ji.setState(com.enioka.jqm.api.State.valueOf(h.getState().toString()));
         ji.setUser(h.getUserName());
         ji.setProgress(h.getProgress());
+        ji.setPriority(h.getPriority());
         for (RuntimeParameter p : em.createQuery("SELECT m from RuntimeParameter m where m.ji = :i", RuntimeParameter.class)
                 .setParameter("i", h.getId()).getResultList())
         {
@@ -938,6 +1027,7 @@ final class HibernateClient implements JqmClient
         ji.setState(com.enioka.jqm.api.State.valueOf(h.getStatus().toString()));
         ji.setUser(h.getUserName());
         ji.setProgress(h.getProgress());
+        ji.setPriority(h.getPriority());
         ji.setKeyword1(h.getInstanceKeyword1());
         ji.setKeyword2(h.getInstanceKeyword2());
         ji.setKeyword3(h.getInstanceKeyword3());
@@ -447,6 +447,23 @@ final class JerseyClient implements JqmClient
         }
     }
 
+    @Override
+    public void setJobPriority(int idJob, int priority)
+    {
+        try
+        {
+            target.path("ji/" + idJob + "/priority/" + priority).request().post(null);
+        }
+        catch (BadRequestException e)
+        {
+            throw new JqmInvalidRequestException(e.getResponse().readEntity(String.class), e);
+        }
+        catch (Exception e)
+        {
+            throw new JqmClientException(e);
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////////
     // Job queries
     // /////////////////////////////////////////////////////////////////////
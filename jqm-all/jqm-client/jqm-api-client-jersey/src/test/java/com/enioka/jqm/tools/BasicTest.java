@@ -213,6 +213,8 @@ public class BasicTest
         Assert.assertEquals(State.SUBMITTED, JqmClientFactory.getClient().getJob(i).getState());
 
         JqmClientFactory.getClient().setJobQueuePosition(i, 12);
+        JqmClientFactory.getClient().setJobPriority(i, 5);
+        Assert.assertEquals(5, (int) JqmClientFactory.getClient().getJob(i).getPriority());
         JqmClientFactory.getClient().cancelJob(i);
         Assert.assertTrue(JqmClientFactory.getClient().getJob(i).getState().equals(State.CANCELLED));
 
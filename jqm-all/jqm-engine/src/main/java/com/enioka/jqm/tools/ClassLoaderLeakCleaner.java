@@ -3,8 +3,19 @@ package com.enioka.jqm.tools;
 import java.beans.Introspector;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
@@ -13,32 +24,129 @@ class ClassLoaderLeakCleaner
 {
     private static Logger jqmlogger = Logger.getLogger(ClassLoaderLeakCleaner.class);
 
+    /**
+     * MBeans which may have to be unregistered at the end of a job, by class loader (null key for MBeans without class loader). Filled by
+     * listening to the registration notifications of the platform MBean server, so that cleaning a class loader does not require to go
+     * through all the MBeans of the server. Guarded by itself.
+     */
+    private static final Map<ClassLoader, Set<ObjectName>> mbeansByClassLoader = new WeakHashMap<ClassLoader, Set<ObjectName>>();
+    private static volatile boolean indexStarted = false;
+
     private ClassLoaderLeakCleaner()
     {
         // Helper class only.
     }
 
+    /**
+     * Starts tracking the MBeans registered on the platform MBean server. Can be called many times. Until this is called,
+     * {@link #clean(ClassLoader)} falls back to a scan of all the MBeans of the server.
+     */
+    static synchronized void startMBeanIndex()
+    {
+        if (indexStarted)
+        {
+            return;
+        }
+
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            // Registration notifications are sent synchronously inside the registering thread, so the index is up to date when a job ends.
+            mbs.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, new NotificationListener()
+            {
+                @Override
+                public void handleNotification(Notification notification, Object handback)
+                {
+                    if (!(notification instanceof MBeanServerNotification))
+                    {
+                        return;
+                    }
+                    ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+                    if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType()))
+                    {
+                        index(mbs, name);
+                    }
+                    else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType()))
+                    {
+                        synchronized (mbeansByClassLoader)
+                        {
+                            for (Set<ObjectName> names : mbeansByClassLoader.values())
+                            {
+                                if (names.remove(name))
+                                {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            }, null, null);
+        }
+        catch (InstanceNotFoundException e)
+        {
+            jqmlogger.warn("Could not listen to MBean registrations - MBean cleanup will scan the whole MBean server at the end of each job",
+                    e);
+            return;
+        }
+
+        // MBeans registered before the listener.
+        for (ObjectName name : mbs.queryNames(null, null))
+        {
+            index(mbs, name);
+        }
+        indexStarted = true;
+    }
+
+    private static void index(MBeanServer mbs, ObjectName name)
+    {
+        if (isIgnored(name))
+        {
+            return;
+        }
+
+        ClassLoader cl;
+        try
+        {
+            cl = mbs.getClassLoaderFor(name);
+        }
+        catch (InstanceNotFoundException e)
+        {
+            // Already gone.
+            return;
+        }
+
+        synchronized (mbeansByClassLoader)
+        {
+            Set<ObjectName> names = mbeansByClassLoader.get(cl);
+            if (names == null)
+            {
+                names = new HashSet<ObjectName>();
+                mbeansByClassLoader.put(cl, names);
+            }
+            names.add(name);
+        }
+    }
+
+    private static boolean isIgnored(ObjectName mbean)
+    {
+        String domain = mbean.getDomain();
+        return domain.startsWith("java.") || domain.startsWith("com.sun.") || domain.startsWith("JMI") || domain.startsWith("com.enioka.");
+    }
+
     static void clean(ClassLoader cl)
     {
         // MBeans
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-        String domain = "";
-        for (ObjectName mbean : mbs.queryNames(null, null))
+        for (ObjectName mbean : getMBeansToClean(mbs, cl))
         {
             try
             {
-                domain = mbean.getDomain();
-                if (domain.startsWith("java.") || domain.startsWith("com.sun.") || domain.startsWith("JMI")
-                        || domain.startsWith("com.enioka."))
-                {
-                    continue;
-                }
-
-                if (mbs.getClassLoaderFor(mbean) == null || mbs.getClassLoaderFor(mbean).equals(cl))
-                {
-                    jqmlogger.info("A JMX Mbean will be forcefully unregistered to avoid classloader leaks: " + mbean.getCanonicalName());
-                    mbs.unregisterMBean(mbean);
-                }
+                jqmlogger.info("A JMX Mbean will be forcefully unregistered to avoid classloader leaks: " + mbean.getCanonicalName());
+                mbs.unregisterMBean(mbean);
+            }
+            catch (InstanceNotFoundException e)
+            {
+                // Unregistered by someone else in the meantime.
             }
             catch (Exception e)
             {
@@ -51,6 +159,49 @@ class ClassLoaderLeakCleaner
         Introspector.flushCaches();
     }
 
+    private static List<ObjectName> getMBeansToClean(MBeanServer mbs, ClassLoader cl)
+    {
+        List<ObjectName> res = new ArrayList<ObjectName>();
+        if (indexStarted)
+        {
+            synchronized (mbeansByClassLoader)
+            {
+                Set<ObjectName> names = mbeansByClassLoader.remove(cl);
+                if (names != null)
+                {
+                    res.addAll(names);
+                }
+                names = mbeansByClassLoader.remove(null);
+                if (names != null)
+                {
+                    res.addAll(names);
+                }
+            }
+            return res;
+        }
+
+        for (ObjectName mbean : mbs.queryNames(null, null))
+        {
+            try
+            {
+                if (isIgnored(mbean))
+                {
+                    continue;
+                }
+                ClassLoader mbeanCl = mbs.getClassLoaderFor(mbean);
+                if (mbeanCl == null || mbeanCl.equals(cl))
+                {
+                    res.add(mbean);
+                }
+            }
+            catch (InstanceNotFoundException e)
+            {
+                // Already gone.
+            }
+        }
+        return res;
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     static void cleanJdbc(Thread t)
     {
@@ -1,9 +1,16 @@
 package com.enioka.jqm.tools;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.naming.NamingException;
@@ -15,6 +22,8 @@ import org.apache.log4j.Logger;
 
 import com.enioka.jqm.jpamodel.JobDef;
 import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Node;
+import com.enioka.jqm.jpamodel.State;
 
 /**
  * This class holds all the {@link JarClassLoader} and is the only place to create one. There should be one instance per engine.<br>
@@ -45,6 +54,30 @@ class ClassloaderManager
      */
     private String launchIsolationDefault = null;
 
+    /**
+     * The idle CLs of the default "Isolated" mode, kept for the next runs of the same job definition (key is the JobDef ID). Always empty
+     * if <code>isolatedPoolSize</code> is zero.
+     */
+    private Map<Integer, Deque<PooledClassLoader>> isolatedPool = new HashMap<Integer, Deque<PooledClassLoader>>();
+
+    /**
+     * The pooled CLs currently used by a running job instance.
+     */
+    private Map<ClassLoader, PooledClassLoader> isolatedInUse = new IdentityHashMap<ClassLoader, PooledClassLoader>();
+
+    private int isolatedPoolSize = 0;
+    private int isolatedPoolMaxUses = 20;
+    private long isolatedPoolIdleMs = 600000;
+
+    private static class PooledClassLoader
+    {
+        JarClassLoader cl;
+        int jobDefId;
+        String signature;
+        int uses = 0;
+        long lastUse;
+    }
+
     private final LibraryResolverFS fsResolver;
     private final LibraryResolverMaven mavenResolver;
 
@@ -55,6 +88,16 @@ class ClassloaderManager
         {
             em = Helpers.getNewEm();
             launchIsolationDefault = Helpers.getParameter("launch_isolation_default", "Isolated", em);
+            isolatedPoolSize = Integer.parseInt(Helpers.getParameter("isolatedPoolSize", "0", em));
+            isolatedPoolMaxUses = Integer.parseInt(Helpers.getParameter("isolatedPoolMaxUses", "20", em));
+            isolatedPoolIdleMs = Long.parseLong(Helpers.getParameter("isolatedPoolIdleMs", "600000", em));
+
+            // Threads left running by a payload prevent the reuse of its CL, but virtual threads cannot be listed.
+            if (isolatedPoolSize > 0 && Boolean.parseBoolean(Helpers.getParameter("loaderVirtualThreads", "false", em)))
+            {
+                jqmlogger.warn("isolatedPoolSize is ignored as loaderVirtualThreads is set - isolated class loaders will not be pooled");
+                isolatedPoolSize = 0;
+            }
         }
         catch (Exception e)
         {
@@ -137,6 +180,33 @@ class ClassloaderManager
                 sharedJarClassLoader.put(jd.getJarPath(), jobClassLoader);
             }
         }
+        else if (isolatedPoolSize > 0)
+        {
+            // Standard case, but CLs are reused by the next launches of the same job definition if they are left clean.
+            final URL[] classpath = getClasspath(ji.getNode(), jd, em);
+            String signature = jarFile.lastModified() + Arrays.toString(classpath) + jd.getHiddenJavaClasses()
+                    + jd.isChildFirstClassLoader() + jd.isClassLoaderTracing();
+            JarClassLoader pooled = borrowIsolated(jd.getId(), signature);
+            if (pooled != null)
+            {
+                jqmlogger.debug("Using a pooled isolated CL");
+                return pooled;
+            }
+
+            jqmlogger.debug("Creating a poolable isolated CL");
+            jobClassLoader = new JarClassLoader(parent);
+            configure(jobClassLoader, jd, jarFile, classpath);
+
+            PooledClassLoader p = new PooledClassLoader();
+            p.cl = jobClassLoader;
+            p.jobDefId = jd.getId();
+            p.signature = signature;
+            synchronized (this)
+            {
+                isolatedInUse.put(jobClassLoader, p);
+            }
+            return jobClassLoader;
+        }
         else
         {
             // Standard case: all launches are independent. We create a transient CL.
@@ -145,8 +215,12 @@ class ClassloaderManager
         }
 
         // Resolve the libraries and add them to the classpath
-        final URL[] classpath = getClasspath(ji, em);
+        configure(jobClassLoader, jd, jarFile, getClasspath(ji.getNode(), jd, em));
+        return jobClassLoader;
+    }
 
+    private void configure(JarClassLoader jobClassLoader, JobDef jd, File jarFile, URL[] classpath) throws MalformedURLException
+    {
         // Remember to also add the jar file itself... as CL can be shared, there is no telling if it already present or not.
         jobClassLoader.extendUrls(jarFile.toURI().toURL(), classpath);
 
@@ -165,8 +239,156 @@ class ClassloaderManager
         {
             jqmlogger.trace("       - " + url.toString());
         }
+    }
 
-        return jobClassLoader;
+    private synchronized JarClassLoader borrowIsolated(int jobDefId, String signature)
+    {
+        evictIdle(System.currentTimeMillis());
+        Deque<PooledClassLoader> idle = isolatedPool.get(jobDefId);
+        while (idle != null && !idle.isEmpty())
+        {
+            PooledClassLoader p = idle.pollFirst();
+            if (p.signature.equals(signature))
+            {
+                isolatedInUse.put(p.cl, p);
+                return p.cl;
+            }
+            discard(p, "the job definition or its libraries have changed");
+        }
+        return null;
+    }
+
+    /**
+     * Must be called once the class loader of a job instance is not used anymore. Pooled isolated CLs go back to the pool if the run
+     * ended normally and left nothing behind. Nothing is done for other CLs.
+     * 
+     * @param cl
+     *            the class loader which was returned by {@link #getClassloader(JobInstance, EntityManager)}.
+     * @param endState
+     *            the final state of the job instance.
+     */
+    void releaseClassloader(ClassLoader cl, State endState)
+    {
+        PooledClassLoader p;
+        synchronized (this)
+        {
+            p = isolatedInUse.remove(cl);
+        }
+        if (p == null)
+        {
+            return;
+        }
+
+        p.uses++;
+        p.lastUse = System.currentTimeMillis();
+        for (Thread t : getAllThreads())
+        {
+            if (t != null && t.isAlive() && t != Thread.currentThread()
+                    && (t.getContextClassLoader() == cl || t.getClass().getClassLoader() == cl))
+            {
+                // Not closed, as the thread may still need to load classes.
+                jqmlogger.debug("A pooled isolated CL is discarded as the thread " + t.getName() + " of its payload is still running");
+                return;
+            }
+        }
+        if (endState != State.ENDED)
+        {
+            discard(p, "its job instance did not end normally");
+            return;
+        }
+        if (p.uses >= isolatedPoolMaxUses)
+        {
+            discard(p, "it was used " + p.uses + " times");
+            return;
+        }
+
+        synchronized (this)
+        {
+            Deque<PooledClassLoader> idle = isolatedPool.get(p.jobDefId);
+            if (idle == null)
+            {
+                idle = new ArrayDeque<PooledClassLoader>();
+                isolatedPool.put(p.jobDefId, idle);
+            }
+            if (idle.size() < isolatedPoolSize)
+            {
+                idle.addFirst(p);
+            }
+            else
+            {
+                discard(p, "the pool of its job definition is full");
+            }
+            evictIdle(p.lastUse);
+        }
+    }
+
+    /**
+     * The number of pooled isolated CLs waiting for a launch, all job definitions included.
+     */
+    synchronized int getIdleIsolatedCount()
+    {
+        int res = 0;
+        for (Deque<PooledClassLoader> idle : isolatedPool.values())
+        {
+            res += idle.size();
+        }
+        return res;
+    }
+
+    private void evictIdle(long now)
+    {
+        for (Iterator<Deque<PooledClassLoader>> it = isolatedPool.values().iterator(); it.hasNext();)
+        {
+            Deque<PooledClassLoader> idle = it.next();
+            // Most recently used CLs are first.
+            while (!idle.isEmpty() && now - idle.peekLast().lastUse > isolatedPoolIdleMs)
+            {
+                PooledClassLoader p = idle.pollLast();
+                discard(p, "it was idle for " + (now - p.lastUse) + "ms");
+            }
+            if (idle.isEmpty())
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops a pooled CL which is not used by any thread anymore. Its jar files are closed on JVMs which allow it (Java 7+).
+     */
+    private void discard(PooledClassLoader p, String reason)
+    {
+        jqmlogger.debug("A pooled isolated CL of job definition " + p.jobDefId + " is discarded as " + reason);
+        if (p.cl instanceof Closeable)
+        {
+            try
+            {
+                ((Closeable) p.cl).close();
+            }
+            catch (IOException e)
+            {
+                jqmlogger.warn("Could not close a discarded pooled isolated CL", e);
+            }
+        }
+    }
+
+    /**
+     * All live platform threads of the JVM. Unlike {@link Thread#getAllStackTraces()}, this needs neither a safepoint nor stack walks. May
+     * contain trailing null elements. Virtual threads are not included, hence no pooling when payloads run inside virtual threads.
+     */
+    private static Thread[] getAllThreads()
+    {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null)
+        {
+            root = root.getParent();
+        }
+        Thread[] res = new Thread[root.activeCount() + 10];
+        while (root.enumerate(res, true) == res.length)
+        {
+            res = new Thread[res.length * 2];
+        }
+        return res;
     }
 
     private ClassLoader getExtensionCLassloader()
@@ -183,20 +405,38 @@ class ClassloaderManager
         return extLoader;
     }
 
+    /**
+     * Forgets all the cached Maven resolutions of the given node.
+     */
+    void clearMavenResolutionCache(Node node)
+    {
+        mavenResolver.clearCache(node);
+    }
+
+    /**
+     * Resolves the libraries of a job definition without launching it, so that its next launch finds them in cache.
+     * 
+     * @throws JqmPayloadException
+     */
+    void prewarm(Node node, JobDef jd, EntityManager em) throws JqmPayloadException
+    {
+        getClasspath(node, jd, em);
+    }
+
     /**
      * Returns all the URL that should be inside the classpath. This includes the jar itself if any.
      * 
      * @throws JqmPayloadException
      */
-    private URL[] getClasspath(JobInstance ji, EntityManager em) throws JqmPayloadException
+    private URL[] getClasspath(Node node, JobDef jd, EntityManager em) throws JqmPayloadException
     {
-        switch (ji.getJd().getPathType())
+        switch (jd.getPathType())
         {
         default:
         case FS:
-            return fsResolver.getLibraries(ji.getNode(), ji.getJd(), em);
+            return fsResolver.getLibraries(node, jd, em);
         case MAVEN:
-            return mavenResolver.resolve(ji, em);
+            return mavenResolver.resolve(node, jd, em);
         case MEMORY:
             return new URL[0];
         }
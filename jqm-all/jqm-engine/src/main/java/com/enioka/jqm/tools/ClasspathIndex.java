@@ -0,0 +1,222 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The index of the packages found inside the URLs of a {@link JarClassLoader}, with the jars containing them. It allows the class loader
+ * to know without any lookup that a class cannot be among its own URLs.<br>
+ * The content of a jar is read only once per JVM (as long as the file is not modified and the jar is among the most recently used ones).
+ * The jars referenced by the Class-Path attribute of a jar manifest are indexed too, as they are also used by the
+ * {@link java.net.URLClassLoader}.<br>
+ * Directories and non-file URLs are not indexed: as soon as the class path contains one, the index answers that any class may be found.
+ * This object is thread-safe.
+ */
+class ClasspathIndex
+{
+    private static Logger jqmlogger = Logger.getLogger(ClasspathIndex.class);
+    private static final Pattern MULTI_RELEASE_PREFIX = Pattern.compile("^META-INF/versions/\\d+/");
+
+    private static class JarContent
+    {
+        long lastModified;
+        long length;
+        Set<String> packages = new HashSet<String>();
+        List<String> classPath = new ArrayList<String>();
+    }
+
+    // JVM-wide cache of jar contents. Key is the absolute path of the jar. Bounded, as paths change with versions (Maven cache, library
+    // store...): the least recently used jars are forgotten first.
+    private static final int MAX_CACHED_JARS = 2000;
+    private static final Map<String, JarContent> jars = Collections.synchronizedMap(new LinkedHashMap<String, JarContent>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = -3402935213925785134L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JarContent> eldest)
+        {
+            return size() > MAX_CACHED_JARS;
+        }
+    });
+
+    private final Map<String, List<URL>> packages = new ConcurrentHashMap<String, List<URL>>();
+    private final Set<String> indexedUrls = new HashSet<String>();
+    private volatile boolean complete = true;
+
+    /**
+     * Adds an URL of the class loader (and the jars referenced by its manifest) to the index.
+     */
+    synchronized void add(URL url)
+    {
+        if (!complete || !indexedUrls.add(url.toExternalForm()))
+        {
+            return;
+        }
+
+        File f = null;
+        if ("file".equals(url.getProtocol()))
+        {
+            try
+            {
+                f = new File(url.toURI());
+            }
+            catch (URISyntaxException e)
+            {
+                f = new File(url.getPath());
+            }
+            catch (IllegalArgumentException e)
+            {
+                f = null;
+            }
+        }
+        if (f != null && !f.exists())
+        {
+            // The URLClassLoader ignores missing files too.
+            jars.remove(f.getAbsolutePath());
+            return;
+        }
+        if (f == null || !f.isFile())
+        {
+            jqmlogger.trace("Class path element " + url + " cannot be indexed - class lookups will not use the index");
+            complete = false;
+            packages.clear();
+            return;
+        }
+
+        JarContent content = getContent(f);
+        if (content == null)
+        {
+            complete = false;
+            packages.clear();
+            return;
+        }
+        for (String pkg : content.packages)
+        {
+            List<URL> urls = packages.get(pkg);
+            if (urls == null)
+            {
+                urls = new CopyOnWriteArrayList<URL>();
+                packages.put(pkg, urls);
+            }
+            urls.add(url);
+        }
+        for (String ref : content.classPath)
+        {
+            try
+            {
+                add(new URL(url, ref));
+            }
+            catch (MalformedURLException e)
+            {
+                // Also ignored by the URLClassLoader
+                jqmlogger.trace("Ignoring incorrect Class-Path element " + ref + " inside " + url);
+            }
+        }
+    }
+
+    /**
+     * False if the class is sure not to be found inside the indexed URLs.
+     */
+    boolean mayContain(String className)
+    {
+        return !complete || packages.containsKey(getPackage(className));
+    }
+
+    /**
+     * The indexed jars containing the given package, or null if the index does not know (not indexed or not found).
+     */
+    List<URL> getJars(String packageName)
+    {
+        return complete ? packages.get(packageName) : null;
+    }
+
+    static String getPackage(String className)
+    {
+        int i = className.lastIndexOf('.');
+        return i < 0 ? "" : className.substring(0, i);
+    }
+
+    private static JarContent getContent(File f)
+    {
+        String key = f.getAbsolutePath();
+        JarContent content = jars.get(key);
+        if (content != null && content.lastModified == f.lastModified() && content.length == f.length())
+        {
+            return content;
+        }
+
+        content = new JarContent();
+        content.lastModified = f.lastModified();
+        content.length = f.length();
+        JarFile jf = null;
+        try
+        {
+            jf = new JarFile(f, false);
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                if (!name.endsWith(".class"))
+                {
+                    continue;
+                }
+                name = MULTI_RELEASE_PREFIX.matcher(name).replaceFirst("");
+                int i = name.lastIndexOf('/');
+                content.packages.add(i < 0 ? "" : name.substring(0, i).replace('/', '.'));
+            }
+
+            Manifest mf = jf.getManifest();
+            String classPath = mf == null ? null : mf.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+            if (classPath != null)
+            {
+                Collections.addAll(content.classPath, classPath.trim().split("\\s+"));
+            }
+        }
+        catch (Exception e)
+        {
+            jqmlogger.debug("Jar file " + key + " cannot be indexed - class lookups will not use the index", e);
+            return null;
+        }
+        finally
+        {
+            Helpers.closeQuietly(jf);
+        }
+
+        jars.put(key, content);
+        return content;
+    }
+}
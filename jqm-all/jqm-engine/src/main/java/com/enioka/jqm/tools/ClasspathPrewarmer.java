@@ -0,0 +1,166 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.JobDef;
+import com.enioka.jqm.jpamodel.Node;
+
+/**
+ * Resolves the classpath of the job definitions which run by default on the queues polled by the engine (extraction of the libraries or
+ * of the pom from the jar, Maven resolution...), so that their first launch after an engine start does not have to.<br>
+ * This is done in the background by a bounded pool of threads. Pollers do not wait for it: the launch of a job definition which is being
+ * pre-warmed simply waits for the end of its resolution, as the resolvers lock each job definition.
+ */
+class ClasspathPrewarmer
+{
+    private static Logger jqmlogger = Logger.getLogger(ClasspathPrewarmer.class);
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger remaining = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private volatile long startTime = 0;
+    private volatile long durationMs = -1;
+
+    ClasspathPrewarmer(int threads)
+    {
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PrewarmThreadFactory());
+    }
+
+    /**
+     * Submits all the job definitions. Does not wait for the end of the resolutions.
+     */
+    void start(final ClassloaderManager clManager, final Node node, List<JobDef> jds)
+    {
+        final int total = jds.size();
+        jqmlogger.info("Classpath of " + total + " job definition(s) will be pre-warmed by " + pool.getCorePoolSize() + " thread(s)");
+        startTime = System.currentTimeMillis();
+        remaining.set(total);
+        if (total == 0)
+        {
+            durationMs = 0;
+        }
+
+        for (final JobDef jd : jds)
+        {
+            pool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long start = System.currentTimeMillis();
+                    EntityManager em = null;
+                    try
+                    {
+                        em = Helpers.getNewEm();
+                        clManager.prewarm(node, jd, em);
+                        jqmlogger.debug("Classpath of job definition " + jd.getApplicationName() + " was pre-warmed in "
+                                + (System.currentTimeMillis() - start) + "ms");
+                    }
+                    catch (Exception e)
+                    {
+                        // Not an issue for the engine: the launches of this job definition will fail (or succeed) on their own.
+                        failed.incrementAndGet();
+                        jqmlogger.warn(
+                                "Classpath of job definition " + jd.getApplicationName() + " could not be pre-warmed: " + e.getMessage());
+                    }
+                    finally
+                    {
+                        Helpers.closeQuietly(em);
+                    }
+
+                    int left = remaining.decrementAndGet();
+                    if (left == 0)
+                    {
+                        durationMs = System.currentTimeMillis() - startTime;
+                        jqmlogger.info("Classpath pre-warming of " + total + " job definition(s) has ended in " + durationMs + "ms with "
+                                + failed.get() + " failure(s)");
+                    }
+                    else if (left % 10 == 0)
+                    {
+                        jqmlogger.info("Classpath pre-warming: " + left + " job definition(s) remaining out of " + total);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Abandons the pre-warming of the job definitions which have not started yet, and waits for the end of the running ones.
+     */
+    void stop()
+    {
+        pool.shutdownNow();
+        try
+        {
+            if (!pool.awaitTermination(60, TimeUnit.SECONDS))
+            {
+                jqmlogger.warn("Classpath pre-warming is still running - the engine stops anyway");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            jqmlogger.warn("Interrupted while waiting for the end of classpath pre-warming", e);
+        }
+    }
+
+    /**
+     * The number of job definitions which have not been pre-warmed yet.
+     */
+    int getRemainingCount()
+    {
+        return remaining.get();
+    }
+
+    /**
+     * The number of job definitions which could not be pre-warmed.
+     */
+    int getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * The duration of the whole pre-warming in milliseconds, or -1 if it has not ended yet.
+     */
+    long getDurationMs()
+    {
+        return durationMs;
+    }
+
+    private static class PrewarmThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "CLASSPATH_PREWARM;;" + count.incrementAndGet());
+        }
+    }
+}
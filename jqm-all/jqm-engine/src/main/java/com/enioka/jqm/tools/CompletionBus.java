@@ -0,0 +1,201 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.JobInstance;
+
+/**
+ * In-JVM notification of the end of job instances, so that payloads waiting for their children (see {@link JobManagerHandler}) are woken
+ * up as soon as a child ends instead of polling the database. Ends are published by the engines running in this JVM right after the
+ * commit of the History, and by the {@link DbNotificationListener} for the job instances ended by other nodes when the database has a
+ * notification channel (only PostgreSQL, and only with the pollerDbNotifications parameter). On other databases, waits on children
+ * running on other nodes rely on polling only.<br>
+ * Notifications are only an accelerator: waiters must still check the database, and do so periodically anyway, as some ends are never
+ * published (e.g. a job instance killed before it started).
+ */
+final class CompletionBus
+{
+    private static Logger jqmlogger = Logger.getLogger(CompletionBus.class);
+
+    /**
+     * Name of the database notification channel used for the same purpose between JVMs, on databases which have such a thing. Payload is
+     * a list of <code>id/parentId</code> separated by semicolons (parentId is empty for job instances without parent).
+     */
+    static final String CHANNEL = "jqm_end";
+
+    // Guarded by CompletionBus.class
+    private static final Map<Integer, List<Waiter>> byId = new HashMap<Integer, List<Waiter>>();
+    private static final Map<Integer, List<Waiter>> byParent = new HashMap<Integer, List<Waiter>>();
+
+    /**
+     * A registration to the end of a job instance or of the children of a job instance. Must be closed once not needed anymore.
+     */
+    static final class Waiter
+    {
+        private final Semaphore ended = new Semaphore(0);
+        private final Map<Integer, List<Waiter>> map;
+        private final int key;
+
+        private Waiter(Map<Integer, List<Waiter>> map, int key)
+        {
+            this.map = map;
+            this.key = key;
+        }
+
+        /**
+         * Waits for a notification sent since the previous call, for at most the given time.
+         * 
+         * @return true if notified, false on timeout.
+         */
+        boolean await(long timeoutMs) throws InterruptedException
+        {
+            boolean res = ended.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+            ended.drainPermits();
+            return res;
+        }
+
+        void close()
+        {
+            synchronized (CompletionBus.class)
+            {
+                List<Waiter> waiters = map.get(key);
+                if (waiters != null)
+                {
+                    waiters.remove(this);
+                    if (waiters.isEmpty())
+                    {
+                        map.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private CompletionBus()
+    {
+        // Static helper class only.
+    }
+
+    /**
+     * Registers for the end of the given job instance. Registration must happen before checking the database, so that no end is missed.
+     */
+    static Waiter waitForJobInstance(int jobInstanceId)
+    {
+        return register(byId, jobInstanceId);
+    }
+
+    /**
+     * Registers for the end of any child of the given job instance.
+     */
+    static Waiter waitForChildren(int parentId)
+    {
+        return register(byParent, parentId);
+    }
+
+    private static synchronized Waiter register(Map<Integer, List<Waiter>> map, int key)
+    {
+        Waiter w = new Waiter(map, key);
+        List<Waiter> waiters = map.get(key);
+        if (waiters == null)
+        {
+            waiters = new ArrayList<Waiter>(1);
+            map.put(key, waiters);
+        }
+        waiters.add(w);
+        return w;
+    }
+
+    /**
+     * Called once the end of a job instance is committed.
+     */
+    static synchronized void jobInstanceEnded(int jobInstanceId, Integer parentId)
+    {
+        release(byId.get(jobInstanceId));
+        if (parentId != null)
+        {
+            release(byParent.get(parentId));
+        }
+    }
+
+    private static void release(List<Waiter> waiters)
+    {
+        if (waiters == null)
+        {
+            return;
+        }
+        for (Waiter w : waiters)
+        {
+            w.ended.release();
+        }
+    }
+
+    /**
+     * Sends the cross-JVM notification of the end of the given job instances. Must be called inside the transaction which ends them, as
+     * the notification is only sent on commit, and only if {@link JqmEngine#isDbNotifications()}.<br>
+     * Only child job instances are notified: they are the ones payloads wait for. Others would only cost a notification (and a lock on the
+     * notification queue at commit) for nothing.
+     */
+    static void notifyOtherNodes(EntityManager em, List<JobInstance> ended)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (JobInstance ji : ended)
+        {
+            if (ji.getParentId() != null)
+            {
+                sb.append(ji.getId()).append('/').append(ji.getParentId()).append(';');
+            }
+        }
+        if (sb.length() == 0)
+        {
+            return;
+        }
+        em.createNativeQuery("SELECT pg_notify(?1, ?2) IS NULL").setParameter(1, CHANNEL).setParameter(2, sb.toString()).getSingleResult();
+    }
+
+    /**
+     * Publishes the content of a notification received on {@link #CHANNEL}.
+     */
+    static void jobInstancesEnded(String payload)
+    {
+        for (String item : payload.split(";"))
+        {
+            if (item.isEmpty())
+            {
+                continue;
+            }
+            try
+            {
+                String[] segments = item.split("/", -1);
+                jobInstanceEnded(Integer.parseInt(segments[0]), segments[1].isEmpty() ? null : Integer.parseInt(segments[1]));
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.warn("Invalid job instance end notification was ignored: " + item, e);
+            }
+        }
+    }
+}
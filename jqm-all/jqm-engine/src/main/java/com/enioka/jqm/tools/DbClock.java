@@ -0,0 +1,91 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The database clock, as seen from this engine. Dates stored inside the database (enqueue, attribution, execution, end...) should all use
+ * the database clock, so as to avoid time lapses between servers. Rather than asking the database for its time each time a date is needed,
+ * the engine keeps the difference between the two clocks, which is refreshed by the {@link InternalPoller}.
+ */
+class DbClock
+{
+    private static Logger jqmlogger = Logger.getLogger(DbClock.class);
+
+    /**
+     * A change of the offset larger than this between two refreshes means one of the clocks has jumped or is drifting.
+     */
+    private static final long DRIFT_WARNING_MS = 1000;
+
+    private volatile long offsetMs = 0;
+    private volatile boolean known = false;
+
+    /**
+     * Measures the offset once again. The local time used is the middle of the round trip to the database.
+     */
+    void refresh(EntityManager em)
+    {
+        long before = System.currentTimeMillis();
+        Date dbTime = em.createQuery("SELECT current_timestamp() AS A from GlobalParameter", Date.class).getSingleResult();
+        long after = System.currentTimeMillis();
+
+        long newOffsetMs = dbTime.getTime() - (before + after) / 2;
+        if (known && Math.abs(newOffsetMs - offsetMs) > DRIFT_WARNING_MS)
+        {
+            jqmlogger.warn("The difference between the database clock and the local clock has changed from " + offsetMs + "ms to "
+                    + newOffsetMs + "ms. Clocks should be synchronized.");
+        }
+        offsetMs = newOffsetMs;
+        known = true;
+    }
+
+    /**
+     * The difference (in ms) between the database clock and the local clock. If it was never measured, it is measured with the given
+     * EntityManager.
+     */
+    long getOffsetMs(EntityManager em)
+    {
+        if (!known)
+        {
+            refresh(em);
+        }
+        return offsetMs;
+    }
+
+    /**
+     * The database time corresponding to a local time.
+     */
+    Calendar toDbTime(long localTimeMs)
+    {
+        Calendar res = Calendar.getInstance();
+        res.setTimeInMillis(localTimeMs + offsetMs);
+        return res;
+    }
+
+    /**
+     * The current database time, as known from the last refresh.
+     */
+    Calendar now()
+    {
+        return toDbTime(System.currentTimeMillis());
+    }
+}
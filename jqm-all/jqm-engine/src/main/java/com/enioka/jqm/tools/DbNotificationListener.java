@@ -0,0 +1,232 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.Work;
+
+import com.enioka.jqm.api.EnqueueNotifier;
+
+/**
+ * Listens to the database notification channel on which clients signal new job instances (PostgreSQL LISTEN/NOTIFY), so that queues are
+ * polled as soon as a job instance is created by a client running inside another JVM. This is only an accelerator: notifications lost for
+ * any reason (e.g. a connection failure) simply mean the new job instances are found by the normal polling.<br>
+ * It also listens to the ends of job instances signaled by the other nodes, which are relayed to the {@link CompletionBus}.<br>
+ * It keeps one database connection for itself. The driver-specific API is called by reflection, as drivers are not on the engine
+ * classpath at compile time.
+ */
+class DbNotificationListener implements Runnable
+{
+    private static Logger jqmlogger = Logger.getLogger(DbNotificationListener.class);
+    private static final int WAIT_MS = 1000;
+    private static final long RETRY_MS = 10000;
+
+    private JqmEngine engine;
+    private volatile boolean run = true;
+
+    DbNotificationListener(JqmEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * @return true if the database behind the given EntityManager has a notification channel which can be used by this class.
+     */
+    static boolean isSupported(EntityManager em)
+    {
+        return ((SessionFactoryImplementor) em.unwrap(Session.class).getSessionFactory()).getDialect() instanceof PostgreSQL81Dialect;
+    }
+
+    void stop()
+    {
+        // No interruption - the connection is in use. The listener will notice within WAIT_MS.
+        jqmlogger.info("Database notification listener has received a stop request");
+        this.run = false;
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("DB_NOTIFICATION_LISTENER;listening;");
+        jqmlogger.info("Start of the database notification listener");
+
+        while (run)
+        {
+            EntityManager em = null;
+            try
+            {
+                em = Helpers.getNewEm();
+                em.unwrap(Session.class).doWork(new Work()
+                {
+                    @Override
+                    public void execute(Connection connection) throws SQLException
+                    {
+                        listen(connection);
+                    }
+                });
+            }
+            catch (JqmInitError e)
+            {
+                jqmlogger.warn("Database notifications will not be used. New job instances will only be found by polling", e);
+                break;
+            }
+            catch (Exception e)
+            {
+                if (!run)
+                {
+                    break;
+                }
+                jqmlogger.warn("Database notification listener has failed. New job instances will only be found by polling until it restarts",
+                        e);
+                try
+                {
+                    Thread.sleep(RETRY_MS);
+                }
+                catch (InterruptedException e1)
+                {
+                    break;
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(em);
+            }
+        }
+
+        jqmlogger.info("End of the database notification listener");
+    }
+
+    private void listen(Connection connection) throws SQLException
+    {
+        Object pgConnection;
+        Method getNotifications, getNotificationsWithTimeout = null, getName, getParameter;
+        try
+        {
+            ClassLoader cl = Helpers.getExtClassLoader();
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection", true,
+                    cl != null ? cl : DbNotificationListener.class.getClassLoader());
+            pgConnection = connection.unwrap(pgConnectionClass);
+            getNotifications = pgConnectionClass.getMethod("getNotifications");
+            try
+            {
+                // Only in recent drivers (42.2+)
+                getNotificationsWithTimeout = pgConnectionClass.getMethod("getNotifications", int.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Will actively poll the connection.
+            }
+            Class<?> pgNotificationClass = Class.forName("org.postgresql.PGNotification", true, pgConnectionClass.getClassLoader());
+            getName = pgNotificationClass.getMethod("getName");
+            getParameter = pgNotificationClass.getMethod("getParameter");
+        }
+        catch (Exception e)
+        {
+            throw new JqmInitError("The PostgreSQL driver does not allow to listen to notifications", e);
+        }
+
+        execute(connection, "LISTEN " + EnqueueNotifier.CHANNEL);
+        execute(connection, "LISTEN " + CompletionBus.CHANNEL);
+        jqmlogger.debug("Listening to database notification channels " + EnqueueNotifier.CHANNEL + " and " + CompletionBus.CHANNEL);
+        try
+        {
+            while (run)
+            {
+                Object[] notifications;
+                try
+                {
+                    if (getNotificationsWithTimeout != null)
+                    {
+                        notifications = (Object[]) getNotificationsWithTimeout.invoke(pgConnection, WAIT_MS);
+                    }
+                    else
+                    {
+                        // Old drivers only read notifications when something is received on the connection.
+                        Thread.sleep(WAIT_MS);
+                        execute(connection, "SELECT 1");
+                        notifications = (Object[]) getNotifications.invoke(pgConnection);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                catch (Exception e)
+                {
+                    throw new JqmRuntimeException("Could not retrieve database notifications", e);
+                }
+
+                if (notifications == null)
+                {
+                    continue;
+                }
+                for (Object notification : notifications)
+                {
+                    try
+                    {
+                        String payload = (String) getParameter.invoke(notification);
+                        if (CompletionBus.CHANNEL.equals(getName.invoke(notification)))
+                        {
+                            CompletionBus.jobInstancesEnded(payload);
+                        }
+                        else
+                        {
+                            this.engine.notifyNewJobInstance(Integer.parseInt(payload));
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        jqmlogger.warn("Invalid database notification was ignored", e);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            execute(connection, "UNLISTEN " + EnqueueNotifier.CHANNEL);
+            execute(connection, "UNLISTEN " + CompletionBus.CHANNEL);
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException
+    {
+        Statement s = connection.createStatement();
+        try
+        {
+            s.execute(sql);
+        }
+        finally
+        {
+            s.close();
+        }
+
+        // LISTEN only takes effect on commit, and notifications are only delivered between transactions.
+        if (!connection.getAutoCommit())
+        {
+            connection.commit();
+        }
+    }
+}
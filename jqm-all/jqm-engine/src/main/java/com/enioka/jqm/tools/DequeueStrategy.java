@@ -0,0 +1,159 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.Work;
+
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Queue;
+
+/**
+ * The way a {@link QueuePoller} fetches and locks the head of its queue. The poller itself keeps the responsibility of choosing which of
+ * the candidates are actually run (free slots, highlander...) and of attributing them.
+ */
+abstract class DequeueStrategy
+{
+    private static Logger jqmlogger = Logger.getLogger(DequeueStrategy.class);
+
+    /**
+     * Returns at most <code>max</code> SUBMITTED job instances from the head of the queue, ordered by priority then position, with their
+     * JobDef fetched. When this method returns, a transaction is active on the given EntityManager (even if the list is empty).
+     */
+    List<JobInstance> getCandidates(EntityManager em, Queue q, int max)
+    {
+        return getCandidates(em, q, null, null, max);
+    }
+
+    /**
+     * Same as {@link #getCandidates(EntityManager, Queue, int)}, but only for the job instances having the given value (which may be null)
+     * for the given fair share field. A null field means no filter. May be called many times inside the same transaction.
+     */
+    abstract List<JobInstance> getCandidates(EntityManager em, Queue q, FairShareKey shareKey, String shareValue, int max);
+
+    /**
+     * Locks one of the candidates returned by {@link #getCandidates(EntityManager, Queue, int)} for the current transaction.
+     *
+     * @return true if the JI is locked and still SUBMITTED, false if it was taken by another engine in the meantime.
+     * @throws javax.persistence.EntityNotFoundException
+     *             if the JI has already been run and purged by another engine. The transaction is then marked rollback only.
+     * @throws javax.persistence.LockTimeoutException
+     *             if the lock could not be acquired in time.
+     */
+    abstract boolean lock(EntityManager em, JobInstance ji);
+
+    /**
+     * Set-based version of {@link #lock(EntityManager, JobInstance)}.
+     *
+     * @return the IDs of the candidates which are locked and still SUBMITTED.
+     * @throws javax.persistence.LockTimeoutException
+     *             if the locks could not be acquired in time.
+     */
+    abstract Set<Integer> lock(EntityManager em, List<JobInstance> candidates);
+
+    /**
+     * The JPQL field of {@link JobInstance} which corresponds to a fair share key.
+     */
+    static String getShareField(FairShareKey shareKey)
+    {
+        return shareKey == FairShareKey.USER ? "userName" : "instanceApplication";
+    }
+
+    /**
+     * The database column of the JobInstance table which corresponds to a fair share key.
+     */
+    static String getShareColumn(FairShareKey shareKey)
+    {
+        return shareKey == FairShareKey.USER ? "username" : "application";
+    }
+
+    /**
+     * Selects the strategy best suited to the database behind the given EntityManager. Databases which support
+     * <code>SELECT ... FOR UPDATE SKIP LOCKED</code> (PostgreSQL 9.5+, Oracle 11+, MySQL 8+, MariaDB 10.6+) use it, so that engines polling
+     * the same queue do not wait on each other's locks. All others (including HSQLDB) use the historical lock-after-read algorithm.
+     */
+    static DequeueStrategy create(EntityManager em)
+    {
+        Session session = em.unwrap(Session.class);
+        Dialect dialect = ((SessionFactoryImplementor) session.getSessionFactory()).getDialect();
+
+        final int[] version = new int[2];
+        final String[] product = new String[1];
+        session.doWork(new Work()
+        {
+            @Override
+            public void execute(Connection connection) throws SQLException
+            {
+                DatabaseMetaData meta = connection.getMetaData();
+                version[0] = meta.getDatabaseMajorVersion();
+                version[1] = meta.getDatabaseMinorVersion();
+                product[0] = meta.getDatabaseProductVersion();
+            }
+        });
+
+        boolean skipLocked = false;
+        if (dialect instanceof PostgreSQL81Dialect)
+        {
+            skipLocked = version[0] > 9 || (version[0] == 9 && version[1] >= 5);
+        }
+        else if (dialect instanceof Oracle8iDialect)
+        {
+            skipLocked = version[0] >= 11;
+        }
+        else if (dialect instanceof MySQLDialect)
+        {
+            // MariaDB also uses the MySQL dialect, with its own version numbers. When using the MySQL driver, the reported product version is
+            // something like 5.5.5-10.6.4-MariaDB.
+            Matcher mariaDb = Pattern.compile("(\\d+)\\.(\\d+)\\.\\d+-MariaDB").matcher(product[0] == null ? "" : product[0]);
+            if (mariaDb.find())
+            {
+                int major = Integer.parseInt(mariaDb.group(1));
+                skipLocked = major > 10 || (major == 10 && Integer.parseInt(mariaDb.group(2)) >= 6);
+            }
+            else
+            {
+                skipLocked = version[0] >= 8;
+            }
+        }
+
+        if (skipLocked)
+        {
+            jqmlogger.debug("Queue pollers will use the SKIP LOCKED dequeue strategy (" + dialect.getClass().getSimpleName() + " - "
+                    + product[0] + ")");
+            return new DequeueStrategySkipLocked(dialect instanceof Oracle8iDialect);
+        }
+        jqmlogger.debug("Queue pollers will use the lock after read dequeue strategy (" + dialect.getClass().getSimpleName() + " - "
+                + product[0] + ")");
+        return new DequeueStrategyLockAfterRead();
+    }
+}
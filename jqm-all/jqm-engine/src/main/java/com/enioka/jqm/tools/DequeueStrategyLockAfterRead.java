@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.jpamodel.State;
+
+/**
+ * The historical dequeue algorithm, which works on every database: the head of the queue is read without any lock, and the candidates are
+ * then locked with a SELECT FOR UPDATE. As the lock is only taken when the row is read again, a candidate may have been taken by another
+ * engine in the meantime, and engines polling the same queue may wait on each other's locks.
+ */
+class DequeueStrategyLockAfterRead extends DequeueStrategy
+{
+    @Override
+    List<JobInstance> getCandidates(EntityManager em, Queue q, FairShareKey shareKey, String shareValue, int max)
+    {
+        String filter = "";
+        if (shareKey != null)
+        {
+            filter = " AND j." + getShareField(shareKey) + (shareValue == null ? " IS NULL" : " = :k");
+        }
+        TypedQuery<JobInstance> query = em.createQuery("SELECT j FROM JobInstance j LEFT JOIN FETCH j.jd WHERE j.queue = :q AND j.state = :s"
+                + filter + " ORDER BY j.priority DESC, j.internalPosition ASC", JobInstance.class);
+        if (shareKey != null && shareValue != null)
+        {
+            query.setParameter("k", shareValue);
+        }
+        List<JobInstance> res = query.setParameter("q", q).setParameter("s", State.SUBMITTED).setMaxResults(max).getResultList();
+        if (!em.getTransaction().isActive())
+        {
+            em.getTransaction().begin();
+        }
+        return res;
+    }
+
+    @Override
+    boolean lock(EntityManager em, JobInstance ji)
+    {
+        // Lock is given when object is read, not during select... stupid.
+        // So we must check if the object is still SUBMITTED.
+        em.refresh(ji, LockModeType.PESSIMISTIC_WRITE);
+        return ji.getState().equals(State.SUBMITTED);
+    }
+
+    @Override
+    Set<Integer> lock(EntityManager em, List<JobInstance> candidates)
+    {
+        Set<Integer> res = new HashSet<Integer>();
+        if (candidates.isEmpty())
+        {
+            return res;
+        }
+        List<Integer> ids = new ArrayList<Integer>(candidates.size());
+        for (JobInstance ji : candidates)
+        {
+            ids.add(ji.getId());
+        }
+
+        // Lock all the candidates in one round trip. JI which have already been eaten by another engine (or have already ended) are simply
+        // not returned by the query.
+        for (JobInstance ji : em.createQuery("SELECT j FROM JobInstance j WHERE j.id IN (:ids) AND j.state = :s", JobInstance.class)
+                .setParameter("ids", ids).setParameter("s", State.SUBMITTED).setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList())
+        {
+            res.add(ji.getId());
+        }
+        return res;
+    }
+}
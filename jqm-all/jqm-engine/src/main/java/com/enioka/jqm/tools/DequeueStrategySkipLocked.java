@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.jpamodel.State;
+
+/**
+ * Dequeue algorithm for databases supporting <code>SELECT ... FOR UPDATE SKIP LOCKED</code>. The head of the queue is read and locked in
+ * the same statement, and rows already locked by another engine are simply ignored instead of being waited for. Therefore engines polling
+ * the same queue never block each other, and the candidates are already locked when returned.<br>
+ * The statement is native SQL run directly on the JDBC connection of the EntityManager, as JPA 2.0 has no way to express SKIP LOCKED and
+ * as Hibernate would otherwise apply its own pagination (which is not compatible with FOR UPDATE on some databases, e.g. Oracle ROWNUM).<br>
+ * The number of rows is limited inside the statement itself: limiting only the fetch would still let the database lock every matching row
+ * on some databases (Oracle, MySQL depending on the plan), i.e. one engine would lock the whole head of the queue.
+ */
+class DequeueStrategySkipLocked extends DequeueStrategy
+{
+    private static final String QUERY = "SELECT id FROM JobInstance WHERE queue_id = ? AND state = ?%s "
+            + "ORDER BY priority DESC, internalPosition ASC LIMIT %d FOR UPDATE SKIP LOCKED";
+
+    // Oracle refuses FOR UPDATE on a query with FETCH FIRST or on an ordered inline view, so the head of the queue is selected by a ROWNUM
+    // subquery and only the rows it returns are locked.
+    private static final String QUERY_ORACLE = "SELECT id FROM JobInstance WHERE id IN (SELECT id FROM (SELECT id FROM JobInstance "
+            + "WHERE queue_id = ? AND state = ?%s ORDER BY priority DESC, internalPosition ASC) WHERE ROWNUM <= %d) AND state = ? "
+            + "ORDER BY priority DESC, internalPosition ASC FOR UPDATE SKIP LOCKED";
+
+    private final boolean oracle;
+
+    DequeueStrategySkipLocked(boolean oracle)
+    {
+        this.oracle = oracle;
+    }
+
+    @Override
+    List<JobInstance> getCandidates(EntityManager em, final Queue q, FairShareKey shareKey, final String shareValue, final int max)
+    {
+        if (!em.getTransaction().isActive())
+        {
+            em.getTransaction().begin();
+        }
+
+        String filter = "";
+        if (shareKey != null)
+        {
+            filter = " AND " + getShareColumn(shareKey) + (shareValue == null ? " IS NULL" : " = ?");
+        }
+        final String sql = String.format(oracle ? QUERY_ORACLE : QUERY, filter, max);
+        final boolean bindShareValue = shareKey != null && shareValue != null;
+
+        final List<Integer> ids = new ArrayList<Integer>(max);
+        em.unwrap(Session.class).doWork(new Work()
+        {
+            @Override
+            public void execute(Connection connection) throws SQLException
+            {
+                PreparedStatement ps = connection.prepareStatement(sql);
+                try
+                {
+                    ps.setMaxRows(max);
+                    ps.setInt(1, q.getId());
+                    ps.setString(2, State.SUBMITTED.toString());
+                    int idx = 3;
+                    if (bindShareValue)
+                    {
+                        ps.setString(idx++, shareValue);
+                    }
+                    if (oracle)
+                    {
+                        ps.setString(idx, State.SUBMITTED.toString());
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next())
+                    {
+                        ids.add(rs.getInt(1));
+                    }
+                }
+                finally
+                {
+                    ps.close();
+                }
+            }
+        });
+
+        if (ids.isEmpty())
+        {
+            return new ArrayList<JobInstance>();
+        }
+        return em
+                .createQuery("SELECT j FROM JobInstance j LEFT JOIN FETCH j.jd WHERE j.id IN (:ids) "
+                        + "ORDER BY j.priority DESC, j.internalPosition ASC", JobInstance.class).setParameter("ids", ids).getResultList();
+    }
+
+    @Override
+    boolean lock(EntityManager em, JobInstance ji)
+    {
+        // Already locked by the SKIP LOCKED query.
+        return true;
+    }
+
+    @Override
+    Set<Integer> lock(EntityManager em, List<JobInstance> candidates)
+    {
+        Set<Integer> res = new HashSet<Integer>();
+        for (JobInstance ji : candidates)
+        {
+            res.add(ji.getId());
+        }
+        return res;
+    }
+}
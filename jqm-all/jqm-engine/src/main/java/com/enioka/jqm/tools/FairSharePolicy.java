@@ -0,0 +1,187 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.jpamodel.State;
+
+/**
+ * Optional dequeue policy of a {@link QueuePoller} which shares the slots of a queue between the different values of a {@link JobInstance}
+ * field (users or applications, see {@link FairShareKey}) instead of running the job instances in strict queue order.<br>
+ * Each value has a deficit counter: the number of its job instances launched by the poller. Free slots go to the waiting values with the
+ * lowest counters, so a value with a huge backlog only gets its share of the queue and never delays the others for long. A value which was
+ * not waiting starts with the lowest counter of the values currently waiting (it neither gets a bonus for having been idle nor is punished
+ * for having used the queue before).<br>
+ * Priority still comes first: candidates are ordered by priority, then by counter.<br>
+ * The counters are held by the poller, so each engine shares its own slots. This class is not thread safe - it is only used by the poller
+ * thread.
+ */
+class FairSharePolicy
+{
+    private final FairShareKey shareKey;
+    private final DequeueStrategy dequeueStrategy;
+    private final Map<String, Long> launchedCount = new HashMap<String, Long>();
+
+    private FairSharePolicy(FairShareKey shareKey, DequeueStrategy dequeueStrategy)
+    {
+        this.shareKey = shareKey;
+        this.dequeueStrategy = dequeueStrategy;
+    }
+
+    /**
+     * @return the policy for the given fair share key, or null if the key is null (the queue should be run in strict order).
+     */
+    static FairSharePolicy create(FairShareKey shareKey, DequeueStrategy dequeueStrategy)
+    {
+        if (shareKey == null)
+        {
+            return null;
+        }
+        return new FairSharePolicy(shareKey, dequeueStrategy);
+    }
+
+    FairShareKey getShareKey()
+    {
+        return shareKey;
+    }
+
+    /**
+     * Replacement for {@link DequeueStrategy#getCandidates(EntityManager, Queue, int)}: returns at most <code>max</code> candidates, taken
+     * from the heads of the sub-queues of the values with the lowest counters, in the order in which they should be run. Same transaction
+     * contract as the strategy.
+     */
+    List<JobInstance> getCandidates(EntityManager em, Queue q, int max)
+    {
+        // Which values are waiting, and how many of their job instances?
+        Map<String, Long> waiting = new HashMap<String, Long>();
+        for (Object[] row : em
+                .createQuery(
+                        "SELECT j." + DequeueStrategy.getShareField(shareKey) + ", COUNT(j) FROM JobInstance j WHERE j.queue = :q "
+                                + "AND j.state = :s GROUP BY j." + DequeueStrategy.getShareField(shareKey), Object[].class)
+                .setParameter("q", q).setParameter("s", State.SUBMITTED).getResultList())
+        {
+            waiting.put((String) row[0], (Long) row[1]);
+        }
+        if (waiting.isEmpty())
+        {
+            return dequeueStrategy.getCandidates(em, q, max);
+        }
+
+        // Forget the values which are not waiting anymore, and start new ones at the current lowest counter.
+        Long min = null;
+        Map<String, Long> counters = new HashMap<String, Long>();
+        for (String value : waiting.keySet())
+        {
+            Long count = launchedCount.get(value);
+            if (count != null)
+            {
+                counters.put(value, count);
+                min = min == null ? count : Math.min(min, count);
+            }
+        }
+        for (String value : waiting.keySet())
+        {
+            if (!counters.containsKey(value))
+            {
+                counters.put(value, min == null ? 0L : min);
+            }
+        }
+        launchedCount.clear();
+        launchedCount.putAll(counters);
+
+        // Share the slots: each one goes to the value with the lowest counter (including the slots already given in this loop) which still
+        // has job instances waiting.
+        Map<String, Integer> shares = new HashMap<String, Integer>();
+        Map<String, Long> virtual = new HashMap<String, Long>(counters);
+        for (int i = 0; i < max; i++)
+        {
+            String best = null;
+            boolean found = false;
+            for (Map.Entry<String, Long> value : waiting.entrySet())
+            {
+                Integer given = shares.get(value.getKey());
+                if ((given == null || given < value.getValue())
+                        && (!found || virtual.get(value.getKey()) < virtual.get(best)))
+                {
+                    best = value.getKey();
+                    found = true;
+                }
+            }
+            if (!found)
+            {
+                break; // Less waiting job instances than slots.
+            }
+            virtual.put(best, virtual.get(best) + 1);
+            shares.put(best, shares.containsKey(best) ? shares.get(best) + 1 : 1);
+        }
+
+        // Fetch the head of each chosen sub-queue. The rank of a candidate inside its sub-queue plus the counter of its value gives its
+        // turn.
+        final Map<JobInstance, Long> turns = new HashMap<JobInstance, Long>();
+        List<JobInstance> res = new ArrayList<JobInstance>(max);
+        for (Map.Entry<String, Integer> share : shares.entrySet())
+        {
+            long turn = counters.get(share.getKey());
+            for (JobInstance ji : dequeueStrategy.getCandidates(em, q, shareKey, share.getKey(), share.getValue()))
+            {
+                turns.put(ji, turn++);
+                res.add(ji);
+            }
+        }
+
+        Collections.sort(res, new Comparator<JobInstance>()
+        {
+            @Override
+            public int compare(JobInstance o1, JobInstance o2)
+            {
+                int p1 = o1.getPriority() == null ? 0 : o1.getPriority();
+                int p2 = o2.getPriority() == null ? 0 : o2.getPriority();
+                if (p1 != p2)
+                {
+                    return p1 > p2 ? -1 : 1;
+                }
+                int res = turns.get(o1).compareTo(turns.get(o2));
+                if (res != 0)
+                {
+                    return res;
+                }
+                return Double.compare(o1.getInternalPosition(), o2.getInternalPosition());
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Must be called for each job instance actually launched by the poller.
+     */
+    void launched(JobInstance ji)
+    {
+        String value = shareKey == FairShareKey.USER ? ji.getUserName() : ji.getApplication();
+        Long count = launchedCount.get(value);
+        launchedCount.put(value, count == null ? 1L : count + 1);
+    }
+}
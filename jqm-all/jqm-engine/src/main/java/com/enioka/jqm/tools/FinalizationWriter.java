@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.JobInstance;
+
+/**
+ * Stores the results of ended job instances (creation of the {@link com.enioka.jqm.jpamodel.History} and removal of the
+ * {@link JobInstance}) for a whole engine. Loaders which end within a few milliseconds of each other are finalized inside a single
+ * transaction, so that many job instances ending together do not each cost a commit to the database.<br>
+ * Loaders which end after the writer was stopped are finalized directly inside their own thread, as before.
+ */
+class FinalizationWriter implements Runnable
+{
+    private static Logger jqmlogger = Logger.getLogger(FinalizationWriter.class);
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final long batchWindowMs;
+    private final DbClock dbClock;
+    private final boolean dbNotifications;
+    private final LinkedList<Loader> pending = new LinkedList<Loader>();
+    private boolean run = true;
+    private Thread localThread = null;
+    private volatile int largestBatchSize = 0;
+
+    /**
+     * @param batchWindowMs
+     *            how long the writer waits for other loaders to end after the first one. 0 means only loaders already waiting are grouped.
+     * @param dbClock
+     *            the clock used for the end dates.
+     * @param dbNotifications
+     *            true if the ends must be notified to the other nodes through the database.
+     */
+    FinalizationWriter(long batchWindowMs, DbClock dbClock, boolean dbNotifications)
+    {
+        this.batchWindowMs = batchWindowMs;
+        this.dbClock = dbClock;
+        this.dbNotifications = dbNotifications;
+    }
+
+    void start()
+    {
+        localThread = new Thread(this, "FINALIZATION_WRITER;;");
+        localThread.start();
+    }
+
+    /**
+     * Asks for the finalization of a loader. Returns at once, unless the writer has already been stopped.
+     */
+    void add(Loader l)
+    {
+        synchronized (this)
+        {
+            if (run)
+            {
+                pending.add(l);
+                this.notifyAll();
+                return;
+            }
+        }
+        l.endOfRunDb();
+    }
+
+    /**
+     * Stops the writer once all pending loaders are finalized. This method waits for the end of the writer thread.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            run = false;
+            this.notifyAll();
+        }
+        if (localThread != null)
+        {
+            try
+            {
+                localThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                jqmlogger.warn("Interrupted while waiting for the end of the finalization writer", e);
+            }
+        }
+    }
+
+    /**
+     * The highest number of job instances finalized inside a single transaction since the start of the writer.
+     */
+    int getLargestBatchSize()
+    {
+        return largestBatchSize;
+    }
+
+    @Override
+    public void run()
+    {
+        jqmlogger.info("Start of the finalization writer");
+        while (true)
+        {
+            boolean wait;
+            synchronized (this)
+            {
+                while (pending.isEmpty() && run)
+                {
+                    try
+                    {
+                        this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Only stop() may end the writer.
+                    }
+                }
+                if (pending.isEmpty())
+                {
+                    break;
+                }
+                wait = run && batchWindowMs > 0;
+            }
+
+            // Give other loaders a chance to join the batch.
+            if (wait)
+            {
+                try
+                {
+                    Thread.sleep(batchWindowMs);
+                }
+                catch (InterruptedException e)
+                {
+                    // Not an issue, the batch is simply smaller.
+                }
+            }
+
+            List<Loader> batch = new ArrayList<Loader>();
+            synchronized (this)
+            {
+                while (!pending.isEmpty() && batch.size() < MAX_BATCH_SIZE)
+                {
+                    batch.add(pending.poll());
+                }
+            }
+            write(batch);
+        }
+        jqmlogger.info("End of the finalization writer");
+    }
+
+    private void write(List<Loader> batch)
+    {
+        jqmlogger.trace("Finalizing " + batch.size() + " job instance(s) inside a single transaction");
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Loader l : batch)
+        {
+            ids.add(l.getId());
+        }
+
+        EntityManager em = null;
+        try
+        {
+            em = Helpers.getNewEm();
+            Map<Integer, JobInstance> jis = new HashMap<Integer, JobInstance>();
+            for (JobInstance ji : em.createQuery("SELECT j FROM JobInstance j WHERE j.id IN (:ids)", JobInstance.class)
+                    .setParameter("ids", ids).getResultList())
+            {
+                jis.put(ji.getId(), ji);
+            }
+            long dbOffsetMs = dbClock.getOffsetMs(em);
+
+            List<JobInstance> ended = new ArrayList<JobInstance>();
+            em.getTransaction().begin();
+            for (Loader l : batch)
+            {
+                JobInstance ji = jis.get(l.getId());
+                if (ji == null)
+                {
+                    jqmlogger.warn("Job instance " + l.getId() + " has disappeared before the end of its run and cannot be finalized");
+                    continue;
+                }
+                l.createHistory(ji, em, dbOffsetMs);
+                ended.add(ji);
+            }
+            em.createQuery("DELETE FROM JobInstance WHERE id IN (:ids)").setParameter("ids", ids).executeUpdate();
+            if (dbNotifications)
+            {
+                CompletionBus.notifyOtherNodes(em, ended);
+            }
+            em.getTransaction().commit();
+            largestBatchSize = Math.max(largestBatchSize, ended.size());
+
+            for (JobInstance ji : ended)
+            {
+                CompletionBus.jobInstanceEnded(ji.getId(), ji.getParentId());
+            }
+        }
+        catch (RuntimeException e)
+        {
+            Helpers.closeQuietly(em);
+            em = null;
+            if (Helpers.testDbFailure(e))
+            {
+                for (Loader l : batch)
+                {
+                    l.endBlockDbFailureAnalysis(e);
+                }
+            }
+            else
+            {
+                // Do not let a single faulty job instance prevent the others from being finalized.
+                jqmlogger.warn("Could not finalize a batch of job instances - they will be finalized one by one", e);
+                for (Loader l : batch)
+                {
+                    try
+                    {
+                        l.endOfRunDb();
+                    }
+                    catch (RuntimeException e2)
+                    {
+                        jqmlogger.error("An error occurred while finalizing job instance " + l.getId(), e2);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(em);
+        }
+    }
+}
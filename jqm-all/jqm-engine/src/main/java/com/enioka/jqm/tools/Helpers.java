@@ -18,8 +18,11 @@
 
 package com.enioka.jqm.tools;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.security.SecureRandom;
 import java.sql.SQLTransientException;
@@ -182,6 +185,37 @@ final class Helpers
         }
     }
 
+    /**
+     * Saves a properties file. It is written in a temporary file first, so that a crash never leaves a half written file behind.
+     */
+    static void storeProperties(Properties p, File file, String comment) throws IOException
+    {
+        File tmp = new File(file.getAbsolutePath() + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+            {
+                throw new IOException("could not create directory " + file.getParentFile().getAbsolutePath());
+            }
+            os = new FileOutputStream(tmp);
+            p.store(os, comment);
+            os.close();
+            if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+            {
+                throw new IOException("could not replace file " + file.getAbsolutePath());
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+            if (tmp.exists() && !tmp.delete())
+            {
+                jqmlogger.warn("could not delete temporary file " + tmp.getAbsolutePath());
+            }
+        }
+    }
+
     static void allowCreateSchema()
     {
         props.put("hibernate.hbm2ddl.auto", "update");
@@ -509,6 +543,13 @@ final class Helpers
             }
         }
 
+        // Job instances waiting since before priorities existed (the column may have been created nullable by a pre-release version)
+        int i2 = em.createQuery("UPDATE JobInstance ji SET ji.priority = 0 WHERE ji.priority IS NULL").executeUpdate();
+        if (i2 > 0)
+        {
+            jqmlogger.info(i2 + " waiting job instance(s) were given the default priority");
+        }
+
         // Global parameters
         initSingleParam("mavenRepo", "http://repo1.maven.org/maven2/", em);
         initSingleParam(Constants.GP_DEFAULT_CONNECTION_KEY, Constants.GP_JQM_CONNECTION_ALIAS, em);
@@ -657,6 +698,7 @@ final class Helpers
         h.setInstanceKeyword3(job.getKeyword3());
         h.setInstanceModule(job.getModule());
         h.setProgress(job.getProgress());
+        h.setPriority(job.getPriority());
         h.setStatus(finalState);
         h.setNode(job.getNode());
         h.setNodeName(job.getNode().getName());
@@ -0,0 +1,166 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Tells if a class name matches one of the rules of the hiddenJavaClasses parameter of a job definition (comma separated regexes, each
+ * matching whole class names).<br>
+ * The rules are nearly always literal class names or package prefixes, such as <code>^java\.foo\..*</code>. Those are stored inside a
+ * single prefix tree, so that a class name is checked against all of them in one pass over its characters. Only the other rules are kept
+ * as regexes and tried one by one. This object is immutable and thread-safe.
+ */
+class HiddenClassesMatcher
+{
+    private static class Node
+    {
+        Map<Character, Node> children = new HashMap<Character, Node>();
+        boolean prefix = false; // A rule ends here and accepts any suffix.
+        boolean exact = false; // A rule ends here.
+    }
+
+    private final Node root = new Node();
+    private final List<Pattern> others = new ArrayList<Pattern>();
+    private int literalCount = 0;
+
+    /**
+     * @param hiddenJavaClasses
+     *            the value of the parameter. Must not be null.
+     * @throws java.util.regex.PatternSyntaxException
+     *             if a rule is not a valid regex.
+     */
+    HiddenClassesMatcher(String hiddenJavaClasses)
+    {
+        for (String regex : hiddenJavaClasses.split(","))
+        {
+            if (!addLiteral(regex))
+            {
+                others.add(Pattern.compile(regex));
+            }
+        }
+    }
+
+    /**
+     * Adds the rule to the prefix tree if it only contains a literal name, optionally anchored and optionally followed by <code>.*</code>.
+     *
+     * @return false if the rule is not of this kind.
+     */
+    private boolean addLiteral(String regex)
+    {
+        String r = regex;
+        if (r.startsWith("^"))
+        {
+            r = r.substring(1);
+        }
+        if (r.endsWith("$") && !r.endsWith("\\$"))
+        {
+            r = r.substring(0, r.length() - 1);
+        }
+        boolean prefix = r.endsWith(".*") && !r.endsWith("\\.*");
+        if (prefix)
+        {
+            r = r.substring(0, r.length() - 2);
+        }
+
+        StringBuilder literal = new StringBuilder(r.length());
+        for (int i = 0; i < r.length(); i++)
+        {
+            char c = r.charAt(i);
+            if (c == '\\' && i + 1 < r.length() && (r.charAt(i + 1) == '.' || r.charAt(i + 1) == '$'))
+            {
+                literal.append(r.charAt(++i));
+            }
+            else if (Character.isLetterOrDigit(c) || c == '_')
+            {
+                literal.append(c);
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+        Node n = root;
+        for (int i = 0; i < literal.length(); i++)
+        {
+            Character c = literal.charAt(i);
+            Node next = n.children.get(c);
+            if (next == null)
+            {
+                next = new Node();
+                n.children.put(c, next);
+            }
+            n = next;
+        }
+        if (prefix)
+        {
+            n.prefix = true;
+        }
+        else
+        {
+            n.exact = true;
+        }
+        literalCount++;
+        return true;
+    }
+
+    boolean matches(String className)
+    {
+        Node n = root;
+        for (int i = 0; i < className.length() && n != null; i++)
+        {
+            if (n.prefix)
+            {
+                return true;
+            }
+            n = n.children.get(className.charAt(i));
+        }
+        if (n != null && (n.prefix || n.exact))
+        {
+            return true;
+        }
+
+        for (Pattern p : others)
+        {
+            if (p.matcher(className).matches())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of rules stored inside the prefix tree.
+     */
+    int getLiteralRuleCount()
+    {
+        return literalCount;
+    }
+
+    /**
+     * The number of rules which are tried as regexes.
+     */
+    int getRegexRuleCount()
+    {
+        return others.size();
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small pool of threads doing what remains to be done once a payload has ended and does not need the payload thread (end e-mail,
+ * class loader leak cleanup, temporary directory removal, JMX bean removal, storage of the results). This way payload threads (and
+ * especially pooled or virtual ones) are given back as soon as possible.<br>
+ * The queue is bounded: when it is full, the payload thread does the housekeeping itself, which slows down the ends of the payloads
+ * rather than letting the backlog grow without limit. It is also the case after the executor was shut down.
+ */
+class HousekeepingExecutor extends ThreadPoolExecutor
+{
+    private static Logger jqmlogger = Logger.getLogger(HousekeepingExecutor.class);
+    private static final long KEEP_ALIVE_S = 60;
+
+    private final AtomicLong callerRunsCount = new AtomicLong(0);
+
+    HousekeepingExecutor(int threads, int queueSize)
+    {
+        super(threads, threads, KEEP_ALIVE_S, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new HousekeepingThreadFactory(),
+                new CallerRunsAlwaysPolicy());
+        allowCoreThreadTimeOut(true);
+        jqmlogger.info("Job instance housekeeping will be done by " + threads + " thread(s) with a queue of " + queueSize);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t)
+    {
+        super.afterExecute(r, t);
+        if (t != null)
+        {
+            jqmlogger.error("An error occurred during the housekeeping of a job instance", t);
+        }
+    }
+
+    /**
+     * The number of ended job instances waiting for a housekeeping thread.
+     */
+    int getQueueDepth()
+    {
+        return getQueue().size();
+    }
+
+    /**
+     * The number of times the queue was full (or the executor shut down) and the payload thread had to do its own housekeeping.
+     */
+    long getCallerRunsCount()
+    {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * Like the standard CallerRunsPolicy, but also runs the task when the executor is shut down: housekeeping must never be lost.
+     */
+    private static class CallerRunsAlwaysPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            ((HousekeepingExecutor) executor).callerRunsCount.incrementAndGet();
+            r.run();
+        }
+    }
+
+    private static class HousekeepingThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "HOUSEKEEPING;;" + count.incrementAndGet());
+        }
+    }
+}
@@ -25,6 +25,7 @@ import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 
 import com.enioka.jqm.jpamodel.Node;
+import com.enioka.jqm.jpamodel.State;
 
 /**
  * The internal poller is responsible for doing all the repetitive tasks of an engine (excluding polling queues). Namely: check if
@@ -74,6 +75,36 @@ class InternalPoller implements Runnable
         this.loop.release(1);
     }
 
+    /**
+     * Raises by one the priority of the waiting job instances which have not been raised (or created) for more than
+     * <code>priorityAgingMinutes</code>, so that low priority requests cannot be starved by a continuous flow of higher priority ones. As
+     * the last aging date is stored with the job instance, many engines can run this concurrently without aging instances any faster.
+     */
+    private void ageWaitingJobInstances(EntityManager em)
+    {
+        int agingMinutes = Integer.parseInt(Helpers.getParameter("priorityAgingMinutes", "0", em));
+        if (agingMinutes <= 0)
+        {
+            return;
+        }
+
+        Calendar now = this.engine.getDbClock().now();
+        Calendar limit = (Calendar) now.clone();
+        limit.add(Calendar.MINUTE, -agingMinutes);
+
+        em.getTransaction().begin();
+        int aged = em
+                .createQuery(
+                        "UPDATE JobInstance j SET j.priority = j.priority + 1, j.priorityAgingDate = :now WHERE j.state = :s "
+                                + "AND ((j.priorityAgingDate IS NULL AND j.creationDate < :limit) OR j.priorityAgingDate < :limit)")
+                .setParameter("now", now).setParameter("s", State.SUBMITTED).setParameter("limit", limit).executeUpdate();
+        em.getTransaction().commit();
+        if (aged > 0)
+        {
+            jqmlogger.debug("Priority of " + aged + " waiting job instance(s) was raised by aging");
+        }
+    }
+
     @Override
     public void run()
     {
@@ -131,6 +162,12 @@ class InternalPoller implements Runnable
                         .executeUpdate();
                 em.getTransaction().commit();
 
+                // Keep the database clock up to date
+                this.engine.getDbClock().refresh(em);
+
+                // Priority aging
+                ageWaitingJobInstances(em);
+
                 // Have queue bindings changed, or is engine disabled?
 
                 this.engine.syncPollers(em, node);
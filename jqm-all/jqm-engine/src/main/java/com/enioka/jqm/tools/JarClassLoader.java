@@ -32,8 +32,8 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -49,10 +49,12 @@ class JarClassLoader extends URLClassLoader
     private static Logger jqmlogger = Logger.getLogger(JarClassLoader.class);
 
     private Map<String, String> prms = new HashMap<String, String>();
+    private KillWatcher killWatcher = null;
+    private ReportWriter reportWriter = null;
 
     private boolean childFirstClassLoader = false;
 
-    private ArrayList<Pattern> hiddenJavaClassesPatterns = new ArrayList<Pattern>();
+    private HiddenClassesMatcher hiddenJavaClassesMatcher = null;
 
     private boolean tracing = false;
 
@@ -60,6 +62,14 @@ class JarClassLoader extends URLClassLoader
 
     private String hiddenJavaClasses = null;
 
+    // Lookup shortcuts: packages present inside the URLs, and class names already known to be absent from the URLs or from the parent.
+    private final ClasspathIndex index = new ClasspathIndex();
+    private final Set<String> localMisses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> parentMisses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Classes this CL has obtained from its parent. (classes defined by this CL are found through findLoadedClass)
+    private final Map<String, Class<?>> parentClasses = new ConcurrentHashMap<String, Class<?>>();
+
     private static URL[] addUrls(URL url, URL[] libs)
     {
         URL[] urls = new URL[libs.length + 1];
@@ -71,6 +81,10 @@ class JarClassLoader extends URLClassLoader
     JarClassLoader(URL url, URL[] libs, ClassLoader parent)
     {
         super(addUrls(url, libs), parent);
+        for (URL u : getURLs())
+        {
+            index.add(u);
+        }
     }
 
     JarClassLoader(ClassLoader parent)
@@ -81,14 +95,19 @@ class JarClassLoader extends URLClassLoader
     void extendUrls(URL jarUrl, URL[] libs)
     {
         super.addURL(jarUrl);
+        index.add(jarUrl);
 
         if (libs != null)
         {
             for (URL url : libs)
             {
                 super.addURL(url);
+                index.add(url);
             }
         }
+
+        // New URLs may contain what was missing.
+        localMisses.clear();
     }
 
     private boolean isLegacyPayload(Class c)
@@ -105,9 +124,12 @@ class JarClassLoader extends URLClassLoader
         return false;
     }
 
-    void launchJar(JobInstance job, Map<String, String> parameters) throws JqmEngineException
+    void launchJar(JobInstance job, Map<String, String> parameters, KillWatcher killWatcher, ReportWriter reportWriter)
+            throws JqmEngineException
     {
         this.prms = parameters;
+        this.killWatcher = killWatcher;
+        this.reportWriter = reportWriter;
 
         // 1st: load the class
         String classQualifiedName = job.getJd().getJavaClassName();
@@ -328,7 +350,7 @@ class JarClassLoader extends URLClassLoader
             return;
         }
 
-        JobManagerHandler h = new JobManagerHandler(job, prms);
+        JobManagerHandler h = new JobManagerHandler(job, prms, killWatcher, reportWriter);
         Class injInt = null;
         Object proxy = null;
         try
@@ -360,68 +382,114 @@ class JarClassLoader extends URLClassLoader
         }
     }
 
+    boolean isHidden(String name)
+    {
+        return hiddenJavaClassesMatcher != null && hiddenJavaClassesMatcher.matches(name);
+    }
+
+    /**
+     * Must be called while holding the lock on this CL, after having checked the class was not already loaded.
+     */
     private Class<?> loadFromParentCL(String name) throws ClassNotFoundException
     {
-        for (Pattern pattern : hiddenJavaClassesPatterns)
+        if (isHidden(name))
         {
-            Matcher matcher = pattern.matcher(name);
-            if (matcher.matches())
-            {
-                jqmlogger.debug("Class " + name + " will not be loaded by parent CL because it matches hiddenJavaClasses parameter");
-                // Invoke findClass in order to find the class.
-                return super.findClass(name);
-            }
+            jqmlogger.debug("Class " + name + " will not be loaded by parent CL because it matches hiddenJavaClasses parameter");
+            // Invoke findClass in order to find the class.
+            return findLocalClass(name);
+        }
+
+        if (parentMisses.contains(name))
+        {
+            // No need to ask the parent again.
+            return findLocalClass(name);
+        }
+
+        Class<?> c = loadClass(name, false);
+        if (c.getClassLoader() != this)
+        {
+            parentClasses.put(name, c);
         }
-        return loadClass(name, false);
+        return c;
     }
 
+    /**
+     * Only called by {@link ClassLoader#loadClass(String, boolean)} once the parent CL has failed to find the class.
+     */
     @Override
-    public Class<?> loadClass(String name) throws ClassNotFoundException
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+        parentMisses.add(name);
+        return findLocalClass(name);
+    }
+
+    /**
+     * Looks for a class inside the URLs of this CL only, without lookups when the index or a previous lookup tell it is not there.
+     */
+    private Class<?> findLocalClass(String name) throws ClassNotFoundException
     {
-        Class<?> c = null;
+        Class<?> c = findLocalClassOrNull(name);
+        if (c == null)
+        {
+            throw new ClassNotFoundException(name);
+        }
+        return c;
+    }
 
+    /**
+     * Same as {@link #findLocalClass(String)} but returns null instead of throwing, as the child first lookup fails for most classes.
+     */
+    private Class<?> findLocalClassOrNull(String name)
+    {
+        if (localMisses.contains(name) || !index.mayContain(name))
+        {
+            return null;
+        }
+        try
+        {
+            return super.findClass(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            localMisses.add(name);
+            return null;
+        }
+    }
+
+    @Override
+    public Class<?> loadClass(String name) throws ClassNotFoundException
+    {
         if (tracing)
         {
-            jqmlogger.debug("Loading : " + name);
+            jqmlogger.debug("Loading : " + name + " - package is inside " + index.getJars(ClasspathIndex.getPackage(name)));
         }
 
-        if (childFirstClassLoader)
+        // Already resolved by this CL, either from its own URLs or from its parent?
+        Class<?> c = parentClasses.get(name);
+        if (c == null)
         {
-            // Check if class was already loaded
             c = findLoadedClass(name);
+        }
+        if (c != null)
+        {
+            return c;
+        }
 
-            if (c == null)
+        // Same lock as ClassLoader.loadClass for a non parallel capable CL, so a class is never defined twice.
+        synchronized (this)
+        {
+            c = findLoadedClass(name);
+            if (c == null && childFirstClassLoader)
             {
                 // Try to find class from URLClassLoader
-                try
-                {
-                    c = super.findClass(name);
-                }
-                catch (ClassNotFoundException e)
-                {
-                    //
-                }
-                // If nothing was found, try parent class loader
-                if (c == null)
-                {
-                    // jqmlogger.trace("found in parent " + name);
-                    c = loadFromParentCL(name);
-                }
-                else
-                {
-                    // jqmlogger.trace("found in child " + name);
-                }
+                c = findLocalClassOrNull(name);
             }
-            else
+            if (c == null)
             {
-                // jqmlogger.trace("name already loaded");
+                // Default behavior, or nothing found locally in child first mode
+                c = loadFromParentCL(name);
             }
         }
-        else
-        {
-            // Default behavior
-            c = loadFromParentCL(name);
-        }
 
         return c;
     }
@@ -436,31 +504,23 @@ class JarClassLoader extends URLClassLoader
         this.childFirstClassLoader = childFirstClassLoader;
     }
 
-    public ArrayList<Pattern> gethiddenJavaClassesPatterns()
-    {
-        return hiddenJavaClassesPatterns;
-    }
-
     public void setHiddenJavaClasses(String hiddenJavaClasses)
     {
         // Save String for quick comparaison
         this.hiddenJavaClasses = hiddenJavaClasses;
 
+        this.hiddenJavaClassesMatcher = null;
         if (hiddenJavaClasses == null)
         {
             return;
         }
-        // Add hidden java classes regex patterns to CL
-        for (String regex : hiddenJavaClasses.split(","))
-        {
-            jqmlogger.debug("Adding " + regex + " hiddenJavaClasses regex to CL");
-            this.addHiddenJavaClassesPattern(Pattern.compile(regex));
-        }
+        jqmlogger.debug("Adding " + hiddenJavaClasses + " hiddenJavaClasses regexes to CL");
+        this.hiddenJavaClassesMatcher = new HiddenClassesMatcher(hiddenJavaClasses);
     }
 
-    private void addHiddenJavaClassesPattern(Pattern hiddenJavaClassesPattern)
+    HiddenClassesMatcher getHiddenJavaClassesMatcher()
     {
-        this.hiddenJavaClassesPatterns.add(hiddenJavaClassesPattern);
+        return hiddenJavaClassesMatcher;
     }
 
     public boolean isTracing()
@@ -37,7 +37,6 @@ import org.apache.log4j.Logger;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClient;
 import com.enioka.jqm.api.JqmClientFactory;
-import com.enioka.jqm.api.Query;
 import com.enioka.jqm.jpamodel.Deliverable;
 import com.enioka.jqm.jpamodel.History;
 import com.enioka.jqm.jpamodel.JobDef;
@@ -59,9 +58,20 @@ class JobManagerHandler implements InvocationHandler
     private String defaultCon = null, application = null, sessionId = null;
     private Node node = null;
     private Calendar lastPeek = null;
+    private KillWatcher killWatcher = null;
+    private ReportWriter reportWriter = null;
 
-    JobManagerHandler(JobInstance ji, Map<String, String> prms)
+    /**
+     * @param killWatcher
+     *            where to check for kill orders without database access. If null (e.g. in the single runner), the job instance is read
+     *            from the database at most once per second.
+     * @param reportWriter
+     *            buffer for progress and messages. If null, they are written at once.
+     */
+    JobManagerHandler(JobInstance ji, Map<String, String> prms, KillWatcher killWatcher, ReportWriter reportWriter)
     {
+        this.killWatcher = killWatcher;
+        this.reportWriter = reportWriter;
         p = new Properties();
         p.put("emf", Helpers.getEmf());
 
@@ -239,6 +249,15 @@ class JobManagerHandler implements InvocationHandler
 
     private void shouldKill()
     {
+        if (this.killWatcher != null)
+        {
+            if (this.killWatcher.isKillRequested(this.ji.getId()))
+            {
+                kill();
+            }
+            return;
+        }
+
         // Throttle: only peek once every 1 second.
         if (lastPeek != null && Calendar.getInstance().getTimeInMillis() - lastPeek.getTimeInMillis() < 1000L)
         {
@@ -252,9 +271,7 @@ class JobManagerHandler implements InvocationHandler
             jqmlogger.trace("Analysis: should JI " + ji.getId() + " get killed? Status is " + ji.getState());
             if (ji.getState().equals(State.KILLED))
             {
-                jqmlogger.info("Job will be killed at the request of a user");
-                Thread.currentThread().interrupt();
-                throw new JqmKillException("This job" + "(ID: " + ji.getId() + ")" + " has been killed by a user");
+                kill();
             }
         }
         finally
@@ -264,6 +281,13 @@ class JobManagerHandler implements InvocationHandler
         }
     }
 
+    private void kill()
+    {
+        jqmlogger.info("Job will be killed at the request of a user");
+        Thread.currentThread().interrupt();
+        throw new JqmKillException("This job" + "(ID: " + ji.getId() + ")" + " has been killed by a user");
+    }
+
     /**
      * Create a {@link com.enioka.jqm.jpamodel.Message} with the given message. The {@link com.enioka.jqm.jpamodel.History} to link to is
      * deduced from the context.
@@ -273,6 +297,11 @@ class JobManagerHandler implements InvocationHandler
      */
     private void sendMsg(String msg)
     {
+        if (this.reportWriter != null && this.reportWriter.sendMsg(this.ji.getId(), msg))
+        {
+            return;
+        }
+
         EntityManager em = Helpers.getNewEm();
         try
         {
@@ -294,6 +323,11 @@ class JobManagerHandler implements InvocationHandler
      */
     private void sendProgress(Integer msg)
     {
+        if (msg != null && this.reportWriter != null && this.reportWriter.sendProgress(this.ji.getId(), msg))
+        {
+            return;
+        }
+
         EntityManager em = Helpers.getNewEm();
         try
         {
@@ -340,41 +374,52 @@ class JobManagerHandler implements InvocationHandler
 
     private void waitChild(int id)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setJobInstanceId(id);
+        waitForEnd(CompletionBus.waitForJobInstance(id), "SELECT COUNT(j) FROM JobInstance j WHERE j.id = :i", id);
+    }
 
-        while (!c.getJobs(q).isEmpty())
+    private void waitChildren()
+    {
+        waitForEnd(CompletionBus.waitForChildren(ji.getId()), "SELECT COUNT(j) FROM JobInstance j WHERE j.parentId = :i", ji.getId());
+    }
+
+    /**
+     * Waits until the given count query returns zero. The query is run each time the waiter is notified of a relevant end (immediately for
+     * job instances ended inside this JVM) and at least once every second, for ends which are not notified.
+     */
+    private void waitForEnd(CompletionBus.Waiter waiter, String countQuery, int id)
+    {
+        try
         {
-            try
+            while (countLiveInstances(countQuery, id) > 0)
             {
-                Thread.sleep(1000);
-                shouldKill();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
+                try
+                {
+                    waiter.await(1000);
+                    shouldKill();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
         }
+        finally
+        {
+            waiter.close();
+        }
     }
 
-    private void waitChildren()
+    private long countLiveInstances(String countQuery, int id)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setParentId(ji.getId());
-
-        while (!c.getJobs(q).isEmpty())
+        EntityManager em = Helpers.getNewEm();
+        try
         {
-            try
-            {
-                Thread.sleep(1000);
-                shouldKill();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
+            return em.createQuery(countQuery, Long.class).setParameter("i", id).getSingleResult();
+        }
+        finally
+        {
+            em.close();
         }
     }
 
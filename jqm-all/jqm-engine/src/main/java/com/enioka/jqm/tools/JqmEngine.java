@@ -20,16 +20,22 @@ package com.enioka.jqm.tools;
 
 import java.io.OutputStreamWriter;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
@@ -40,9 +46,11 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.RollingFileAppender;
 import org.eclipse.jetty.util.ArrayQueue;
 
+import com.enioka.jqm.api.EnqueueNotifier;
 import com.enioka.jqm.jpamodel.DeploymentParameter;
 import com.enioka.jqm.jpamodel.GlobalParameter;
 import com.enioka.jqm.jpamodel.History;
+import com.enioka.jqm.jpamodel.JobDef;
 import com.enioka.jqm.jpamodel.JobInstance;
 import com.enioka.jqm.jpamodel.Message;
 import com.enioka.jqm.jpamodel.Node;
@@ -68,12 +76,29 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     // Threads that together constitute the engine
     private Map<Integer, QueuePoller> pollers = new HashMap<Integer, QueuePoller>();
     private InternalPoller intPoller = null;
+    private KillWatcher killWatcher = null;
+    private DbNotificationListener dbNotificationListener = null;
+    private boolean dbNotifications = false;
+    private LoaderExecutor loaderExecutor = null;
+    private FinalizationWriter finalizationWriter = null;
+    private ReportWriter reportWriter = null;
+    private HousekeepingExecutor housekeepingExecutor = null;
+    private ClasspathPrewarmer classpathPrewarmer = null;
+    private volatile Method startVirtualThread = null;
+
+    // Highlander job definitions with an instance running on this node (JD ID -> count, which should never exceed one)
+    private final ConcurrentHashMap<Integer, AtomicInteger> runningHighlanders = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    // CPU and memory budget of the node, shared by all pollers
+    private final ResourceBudget resources = new ResourceBudget();
+    private final DbClock dbClock = new DbClock();
     private JettyServer server = null;
 
     // Misc data
     private Calendar startTime = Calendar.getInstance();
     private Thread killHook = null;
     boolean loadJmxBeans = true;
+    boolean loadJobInstanceJmxBeans = false;
     private AtomicLong endedInstances = new AtomicLong(0);
 
     // DB connection resilience data
@@ -82,6 +107,16 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     private volatile Queue<Loader> loaderToRestart = new ArrayQueue<Loader>();
     private volatile Thread qpRestarter = null;
 
+    // Wake up the pollers as soon as a job instance is created by a client inside this JVM
+    private final EnqueueNotifier.Listener enqueueListener = new EnqueueNotifier.Listener()
+    {
+        @Override
+        public void jobInstanceCreated(int queueId)
+        {
+            notifyNewJobInstance(queueId);
+        }
+    };
+
     /**
      * Starts the engine
      * 
@@ -122,12 +157,15 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                     "the specified node name [" + nodeName + "] does not exist in the configuration. Please create this node before starting it", e);
         }
 
+        resources.setCapacity(node.getCpuUnits(), node.getMemoryMb());
+        dbClock.refresh(em);
+
         // Check if double-start
         long toWait = (long) (1.1 * Long.parseLong(Helpers.getParameter("internalPollingPeriodMs", "60000", em)));
         if (node.getLastSeenAlive() != null
-                && Calendar.getInstance().getTimeInMillis() - node.getLastSeenAlive().getTimeInMillis() <= toWait)
+                && dbClock.now().getTimeInMillis() - node.getLastSeenAlive().getTimeInMillis() <= toWait)
         {
-            long r = Calendar.getInstance().getTimeInMillis() - node.getLastSeenAlive().getTimeInMillis();
+            long r = dbClock.now().getTimeInMillis() - node.getLastSeenAlive().getTimeInMillis();
             throw new JqmInitErrorTooSoon("Another engine named " + nodeName + " was running less than " + r / 1000
                     + " seconds ago. Either stop the other node, or if it already stopped, please wait " + (toWait - r) / 1000
                     + " seconds");
@@ -135,7 +173,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Prevent very quick multiple starts by immediately setting the keep-alive
         em.getTransaction().begin();
-        node.setLastSeenAlive(Calendar.getInstance());
+        node.setLastSeenAlive(dbClock.now());
         em.getTransaction().commit();
 
         // Only start if the node configuration seems OK
@@ -173,6 +211,9 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                     "JMX remote listener will not be started as JMX registry port and JMX server port parameters are not both defined");
         }
 
+        // Index of the MBeans created by payloads, used for cleaning them at the end of each run
+        ClassLoaderLeakCleaner.startMBeanIndex();
+
         // Jetty
         this.server = new JettyServer();
         this.server.start(node, em);
@@ -191,6 +232,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                 throw new JqmInitError("Could not create JMX beans", e);
             }
             jqmlogger.info("JMX management bean for the engine was registered");
+            loadJobInstanceJmxBeans = Boolean.parseBoolean(Helpers.getParameter("jmxJobInstanceBeans", "false", em));
         }
         else
         {
@@ -211,6 +253,73 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         // Force Message EMF load
         em.createQuery("SELECT m FROM Message m WHERE 1=0", Message.class).getResultList();
 
+        // Job instance threads
+        if (Boolean.parseBoolean(Helpers.getParameter("loaderVirtualThreads", "false", em)))
+        {
+            // Java 21+ only - and this code must run on older JVMs.
+            try
+            {
+                startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+                jqmlogger.info("Job instances will run inside virtual threads");
+            }
+            catch (NoSuchMethodException e)
+            {
+                jqmlogger.warn("Virtual threads were requested but are not supported by this JVM. Platform threads will be used");
+            }
+        }
+        if (startVirtualThread == null && Boolean.parseBoolean(Helpers.getParameter("loaderThreadPool", "false", em)))
+        {
+            loaderExecutor = new LoaderExecutor(Integer.parseInt(Helpers.getParameter("loaderThreadPoolMin", "0", em)),
+                    Integer.parseInt(Helpers.getParameter("loaderThreadPoolMax", "100", em)));
+        }
+
+        // Job instance housekeeping
+        int housekeepingThreads = Integer.parseInt(Helpers.getParameter("housekeepingThreads", "0", em));
+        if (housekeepingThreads > 0)
+        {
+            housekeepingExecutor = new HousekeepingExecutor(housekeepingThreads,
+                    Integer.parseInt(Helpers.getParameter("housekeepingQueueSize", "1000", em)));
+        }
+
+        // Database notifications (new job instances and ends of child job instances)
+        dbNotifications = Boolean.parseBoolean(Helpers.getParameter("pollerDbNotifications", "false", em))
+                && DbNotificationListener.isSupported(em);
+
+        // Job instance finalization
+        long finalizationBatchMs = Long.parseLong(Helpers.getParameter("finalizationBatchMs", "-1", em));
+        if (finalizationBatchMs >= 0)
+        {
+            finalizationWriter = new FinalizationWriter(finalizationBatchMs, dbClock, dbNotifications);
+            finalizationWriter.start();
+        }
+
+        // Progress and messages sent by running job instances
+        long reportFlushMs = Long.parseLong(Helpers.getParameter("reportFlushMs", "0", em));
+        if (reportFlushMs > 0)
+        {
+            reportWriter = new ReportWriter(reportFlushMs);
+            reportWriter.start();
+        }
+
+        // Libraries of deleted job definitions, and libraries not used anymore (no payload of this node can run yet)
+        if (LibraryStore.getDirectory(node).isDirectory())
+        {
+            LibraryStore store = LibraryStore.get(node);
+            store.retainOwners(em.createQuery("SELECT jd.applicationName FROM JobDef jd", String.class).getResultList());
+            store.collect();
+        }
+
+        // Resolve the classpaths of the job definitions before their first launch
+        int prewarmThreads = Integer.parseInt(Helpers.getParameter("classpathPrewarmThreads", "0", em));
+        if (prewarmThreads > 0)
+        {
+            classpathPrewarmer = new ClasspathPrewarmer(prewarmThreads);
+            classpathPrewarmer.start(clManager, node, em
+                    .createQuery("SELECT DISTINCT jd FROM JobDef jd, DeploymentParameter dp WHERE dp.node.id = :n AND jd.queue = dp.queue",
+                            JobDef.class)
+                    .setParameter("n", node.getId()).getResultList());
+        }
+
         // Pollers
         syncPollers(em, this.node);
         jqmlogger.info("All required queues are now polled");
@@ -220,6 +329,18 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         Thread t = new Thread(intPoller);
         t.start();
 
+        // Kill orders (checked by the engine API without database access)
+        killWatcher = new KillWatcher(this, Long.parseLong(Helpers.getParameter("killCheckPeriodMs", "1000", em)));
+        new Thread(killWatcher).start();
+
+        // New job instance notifications (polling is still done, this is only to reduce latency)
+        EnqueueNotifier.addListener(this.enqueueListener);
+        if (dbNotifications)
+        {
+            dbNotificationListener = new DbNotificationListener(this);
+            new Thread(dbNotificationListener).start();
+        }
+
         // Kill notifications
         killHook = new SignalHandler(this);
         Runtime.getRuntime().addShutdownHook(killHook);
@@ -283,6 +404,8 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
     synchronized void syncPollers(EntityManager em, Node node)
     {
+        resources.setCapacity(node.getCpuUnits(), node.getMemoryMb());
+
         if (node.getEnabled())
         {
             List<DeploymentParameter> dps = em
@@ -296,6 +419,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                 {
                     p = pollers.get(i.getId());
                     p.setPollingInterval(i.getPollingInterval());
+                    p.setFairShareKey(i.getQueue().getFairShareKey());
 
                     if (i.getEnabled())
                     {
@@ -368,6 +492,50 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Also stop the internal poller
         this.intPoller.stop();
+        this.killWatcher.stop();
+
+        // And the notification listeners
+        EnqueueNotifier.removeListener(this.enqueueListener);
+        if (this.dbNotificationListener != null)
+        {
+            this.dbNotificationListener.stop();
+        }
+
+        if (this.classpathPrewarmer != null)
+        {
+            this.classpathPrewarmer.stop();
+        }
+
+        // Pool threads end once the remaining job instances (if any) are done
+        if (this.loaderExecutor != null)
+        {
+            this.loaderExecutor.shutdown();
+        }
+
+        // Store the results of the last job instances
+        if (this.housekeepingExecutor != null)
+        {
+            this.housekeepingExecutor.shutdown();
+            try
+            {
+                if (!this.housekeepingExecutor.awaitTermination(60, TimeUnit.SECONDS))
+                {
+                    jqmlogger.warn("Housekeeping of the last job instances is still running - the engine stops anyway");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                jqmlogger.warn("Interrupted while waiting for the end of job instance housekeeping", e);
+            }
+        }
+        if (this.reportWriter != null)
+        {
+            this.reportWriter.stop();
+        }
+        if (this.finalizationWriter != null)
+        {
+            this.finalizationWriter.stop();
+        }
 
         // Reset the stop counter - we may want to restart one day
         EntityManager em = null;
@@ -420,7 +588,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
             History h = em.find(History.class, ji.getId());
             if (h == null)
             {
-                h = Helpers.createHistory(ji, em, State.CRASHED, Calendar.getInstance());
+                h = Helpers.createHistory(ji, em, State.CRASHED, dbClock.now());
                 Message m = new Message();
                 m.setJi(ji.getId());
                 m.setTextMessage(
@@ -543,7 +711,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                 while (l != null)
                 {
                     jqmlogger.warn("restarting (after db failure during initialization) loader " + l.getId());
-                    (new Thread(l)).start();
+                    ee.startLoader(l);
                     l = loaderToRestart.poll();
                 }
 
@@ -558,11 +726,171 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return this.clManager;
     }
 
+    /**
+     * The database clock, to be used for all dates stored inside the database.
+     */
+    DbClock getDbClock()
+    {
+        return this.dbClock;
+    }
+
+    /**
+     * The writer which stores the progress and messages sent by running job instances, or null if they are written at once.
+     */
+    ReportWriter getReportWriter()
+    {
+        return this.reportWriter;
+    }
+
+    /**
+     * The in-memory view of the kill orders of the job instances running on this node.
+     */
+    KillWatcher getKillWatcher()
+    {
+        return this.killWatcher;
+    }
+
+    /**
+     * The threads which do the end of run tasks of job instances, or null if they are done by the payload threads.
+     */
+    HousekeepingExecutor getHousekeepingExecutor()
+    {
+        return this.housekeepingExecutor;
+    }
+
+    /**
+     * The writer which stores the results of ended job instances, or null if each loader stores its own results.
+     */
+    FinalizationWriter getFinalizationWriter()
+    {
+        return this.finalizationWriter;
+    }
+
+    /**
+     * A copy of the list of the current queue pollers.
+     */
+    List<QueuePoller> getPollers()
+    {
+        return new ArrayList<QueuePoller>(this.pollers.values());
+    }
+
+    /**
+     * True if the database has a notification channel and its use is allowed by the pollerDbNotifications parameter.
+     */
+    boolean isDbNotifications()
+    {
+        return this.dbNotifications;
+    }
+
+    /**
+     * True if the loaders currently run inside virtual threads.
+     */
+    boolean isUsingVirtualThreads()
+    {
+        return this.startVirtualThread != null;
+    }
+
+    /**
+     * The thread pool running the loaders, or null if each loader has its own thread.
+     */
+    LoaderExecutor getLoaderExecutor()
+    {
+        return this.loaderExecutor;
+    }
+
     JettyServer getJetty()
     {
         return this.server;
     }
 
+    /**
+     * Runs a {@link Loader} or a {@link LoaderExternal}, either inside a new thread, inside a new virtual thread or inside the loader thread
+     * pool, depending on the configuration.
+     */
+    void startLoader(Runnable loader)
+    {
+        if (this.startVirtualThread != null)
+        {
+            try
+            {
+                this.startVirtualThread.invoke(null, loader);
+                return;
+            }
+            catch (Exception e)
+            {
+                // E.g. Java 19/20 without preview features enabled.
+                jqmlogger.warn("Could not start a virtual thread. Platform threads will be used from now on", e);
+                this.startVirtualThread = null;
+            }
+        }
+
+        if (this.loaderExecutor != null)
+        {
+            this.loaderExecutor.execute(loader);
+        }
+        else
+        {
+            (new Thread(loader)).start();
+        }
+    }
+
+    /**
+     * Called when a new job instance was created inside the given queue. Pollers on this queue will poll right away instead of waiting for
+     * the end of their polling interval.
+     */
+    synchronized void notifyNewJobInstance(int queueId)
+    {
+        for (QueuePoller p : this.pollers.values())
+        {
+            if (p.getQueue().getId() == queueId)
+            {
+                p.wakeUp();
+            }
+        }
+    }
+
+    ResourceBudget getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * Registers the start of a job instance of a highlander job definition on this node. See {@link #isHighlanderRunning(int)}.
+     */
+    void highlanderStarted(int jdId)
+    {
+        AtomicInteger count = runningHighlanders.get(jdId);
+        if (count == null)
+        {
+            AtomicInteger newCount = new AtomicInteger(0);
+            count = runningHighlanders.putIfAbsent(jdId, newCount);
+            if (count == null)
+            {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void highlanderEnded(int jdId)
+    {
+        AtomicInteger count = runningHighlanders.get(jdId);
+        if (count != null)
+        {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * True if an instance of the given highlander job definition is attributed to or running on this node. Allows pollers to avoid
+     * querying the database for job definitions they already know about.
+     */
+    boolean isHighlanderRunning(int jdId)
+    {
+        AtomicInteger count = runningHighlanders.get(jdId);
+        return count != null && count.get() > 0;
+    }
+
     void signalEndOfRun()
     {
         this.endedInstances.incrementAndGet();
@@ -626,6 +954,48 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return res;
     }
 
+    @Override
+    public int getHousekeepingQueueDepth()
+    {
+        return this.housekeepingExecutor == null ? 0 : this.housekeepingExecutor.getQueueDepth();
+    }
+
+    @Override
+    public long getHousekeepingCallerRunsCount()
+    {
+        return this.housekeepingExecutor == null ? 0 : this.housekeepingExecutor.getCallerRunsCount();
+    }
+
+    @Override
+    public int getClasspathPrewarmRemainingCount()
+    {
+        return this.classpathPrewarmer == null ? 0 : this.classpathPrewarmer.getRemainingCount();
+    }
+
+    @Override
+    public int getClasspathPrewarmFailedCount()
+    {
+        return this.classpathPrewarmer == null ? 0 : this.classpathPrewarmer.getFailedCount();
+    }
+
+    @Override
+    public long getClasspathPrewarmDurationMs()
+    {
+        return this.classpathPrewarmer == null ? -1 : this.classpathPrewarmer.getDurationMs();
+    }
+
+    @Override
+    public void clearMavenResolutionCache()
+    {
+        this.clManager.clearMavenResolutionCache(this.node);
+    }
+
+    @Override
+    public TabularData getRunningJobInstances()
+    {
+        return RunningJobInstancesData.create(this.pollers.values(), this.dbClock.now());
+    }
+
     @Override
     public long getUptime()
     {
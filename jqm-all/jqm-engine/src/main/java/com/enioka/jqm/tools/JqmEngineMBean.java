@@ -15,6 +15,8 @@
  */
 package com.enioka.jqm.tools;
 
+import javax.management.openmbean.TabularData;
+
 import com.enioka.jqm.jpamodel.GlobalParameter;
 
 /**
@@ -53,6 +55,12 @@ public interface JqmEngineMBean
      */
     long getCurrentlyRunningJobCount();
 
+    /**
+     * The job instances currently running on this node, one row per job instance (ID, application name, queue, tags, enqueue date and run
+     * time). This is built from the engine memory and does not access the database.
+     */
+    TabularData getRunningJobInstances();
+
     /**
      * True if, for all pollers, the last time the poller looped was less than a polling period ago.
      */
@@ -77,4 +85,34 @@ public interface JqmEngineMBean
      * The count, for all pollers, of running jobs that have run for more than their maxTimeRunning time.
      */
     int getLateJobs();
+
+    /**
+     * The number of ended job instances waiting for their end of run tasks (end e-mail, cleanup, storage of the results).
+     */
+    int getHousekeepingQueueDepth();
+
+    /**
+     * The number of ended job instances which had to do their own end of run tasks because the housekeeping queue was full.
+     */
+    long getHousekeepingCallerRunsCount();
+
+    /**
+     * The number of job definitions whose classpath has not been pre-warmed yet since engine start.
+     */
+    int getClasspathPrewarmRemainingCount();
+
+    /**
+     * The number of job definitions whose classpath could not be pre-warmed at engine start.
+     */
+    int getClasspathPrewarmFailedCount();
+
+    /**
+     * How long the pre-warming of the classpaths took at engine start, in milliseconds. -1 if it is not over or if it is disabled.
+     */
+    long getClasspathPrewarmDurationMs();
+
+    /**
+     * Forgets all the cached Maven resolutions of this node, so that Maven payloads resolve their dependencies again on their next launch.
+     */
+    void clearMavenResolutionCache();
 }
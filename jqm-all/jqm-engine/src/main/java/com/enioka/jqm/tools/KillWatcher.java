@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.State;
+
+/**
+ * Periodically fetches, in a single query, which of the job instances running on the node have been asked to stop (state KILLED), and
+ * keeps the answer in memory. This way the engine API called by payloads (see {@link JobManagerHandler}) can check for kill orders as
+ * often as it wants without any database access.<br>
+ * A failed read is not an issue: the previous answer is kept until the next loop.
+ */
+class KillWatcher implements Runnable
+{
+    private static Logger jqmlogger = Logger.getLogger(KillWatcher.class);
+
+    private JqmEngine engine;
+    private long step;
+    private volatile boolean run = true;
+    private volatile Set<Integer> killed = Collections.emptySet();
+    private Semaphore loop = new Semaphore(0);
+
+    KillWatcher(JqmEngine engine, long step)
+    {
+        this.engine = engine;
+        this.step = step;
+    }
+
+    void stop()
+    {
+        jqmlogger.info("Kill order watcher has received a stop request");
+        this.run = false;
+        // Wake up the watcher if it is waiting for its next loop. No interruption, as it may be inside a query.
+        this.loop.release(1);
+    }
+
+    /**
+     * @return true if the given job instance was KILLED in the database at the time of the latest check. Does not access the database.
+     */
+    boolean isKillRequested(int jobInstanceId)
+    {
+        return this.killed.contains(jobInstanceId);
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("KILL_WATCHER;polling orders;");
+        jqmlogger.info("Start of the kill order watcher");
+
+        while (run)
+        {
+            try
+            {
+                loop.tryAcquire(this.step, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            if (!run)
+            {
+                break;
+            }
+
+            EntityManager em = null;
+            try
+            {
+                // Nothing to kill, nothing to read.
+                if (this.engine.getCurrentlyRunningJobCount() == 0)
+                {
+                    this.killed = Collections.emptySet();
+                    continue;
+                }
+
+                em = Helpers.getNewEm();
+                Set<Integer> res = new HashSet<Integer>(em
+                        .createQuery("SELECT j.id FROM JobInstance j WHERE j.node.id = :n AND j.state = :s", Integer.class)
+                        .setParameter("n", this.engine.getNode().getId()).setParameter("s", State.KILLED).getResultList());
+                if (!res.isEmpty())
+                {
+                    jqmlogger.trace("Job instances with a pending kill order: " + res);
+                }
+                this.killed = res;
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.warn("Could not check kill orders - they will be checked again during next loop", e);
+            }
+            finally
+            {
+                Helpers.closeQuietly(em);
+            }
+        }
+
+        jqmlogger.info("End of the kill order watcher");
+    }
+}
@@ -23,8 +23,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -46,7 +47,7 @@ import com.enioka.jqm.jpamodel.Node;
  * costly, it is only done the first time and cached afterwards. <br>
  * Cache invalidation is done by analyzing the last modification date of the payload jar and of the lib directory (if any) on each call.<br>
  * There is one library cache per engine.<br>
- * This object is thread-safe.
+ * This object is thread-safe. Job definitions whose jars are inside different directories are resolved in parallel.
  */
 class LibraryResolverFS
 {
@@ -64,7 +65,12 @@ class LibraryResolverFS
         Date loadTime;
     }
 
-    private Map<String, JobDefLibrary> cache = new HashMap<String, LibraryResolverFS.JobDefLibrary>();
+    private Map<String, JobDefLibrary> cache = new ConcurrentHashMap<String, LibraryResolverFS.JobDefLibrary>();
+
+    /**
+     * One lock per jar directory, as the resolution may write inside it (pom.xml extracted from the jar).
+     */
+    private ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
 
     /**
      * 
@@ -76,13 +82,25 @@ class LibraryResolverFS
      *            an EM that will be used only if not in cache, to fetch the Maven repository list from the database.
      * @throws JqmPayloadException
      */
-    synchronized URL[] getLibraries(Node n, JobDef jd, EntityManager em) throws JqmPayloadException
+    URL[] getLibraries(Node n, JobDef jd, EntityManager em) throws JqmPayloadException
     {
-        if (shouldLoad(n, jd))
+        String jarDir = new File(FilenameUtils.concat(new File(n.getRepo()).getAbsolutePath(), jd.getJarPath())).getParentFile()
+                .getAbsolutePath();
+        Object lock = locks.get(jarDir);
+        if (lock == null)
         {
-            loadCache(n, jd, em);
+            locks.putIfAbsent(jarDir, new Object());
+            lock = locks.get(jarDir);
+        }
+
+        synchronized (lock)
+        {
+            if (shouldLoad(n, jd))
+            {
+                loadCache(n, jd, em);
+            }
+            return cache.get(jd.getApplicationName()).urls;
         }
-        return cache.get(jd.getApplicationName()).urls;
     }
 
     /**
@@ -174,52 +192,19 @@ class LibraryResolverFS
             }
         }
 
-        // 2nd: no pom, no pom inside jar, no lib dir => find a lib dir inside the jar
+        // 2nd: no pom, no pom inside jar, no lib dir => find a lib dir inside the jar. Its content goes to the node library store.
         if (!pomFile.exists() && !libDir.exists())
         {
             jqmlogger.trace("Checking for a lib directory inside jar");
-            InputStream is = null;
-            FileOutputStream os = null;
-            ZipFile zf = null;
-            FileUtils.deleteQuietly(libDirExtracted);
 
-            try
-            {
-                zf = new ZipFile(jarFile);
-                Enumeration<? extends ZipEntry> zes = zf.entries();
-                while (zes.hasMoreElements())
-                {
-                    ZipEntry ze = zes.nextElement();
-                    if (ze.getName().startsWith("lib/") && ze.getName().endsWith(".jar"))
-                    {
-                        if (!libDirExtracted.isDirectory() && !libDirExtracted.mkdir())
-                        {
-                            throw new JqmPayloadException("Could not extract libraries from jar");
-                        }
+            // Directory created by previous versions, which extracted the libraries next to each jar.
+            FileUtils.deleteQuietly(libDirExtracted);
 
-                        is = zf.getInputStream(ze);
-                        os = new FileOutputStream(
-                                FilenameUtils.concat(libDirExtracted.getAbsolutePath(), FilenameUtils.getName(ze.getName())));
-                        IOUtils.copy(is, os);
-                    }
-                }
-            }
-            catch (Exception e)
-            {
-                throw new JqmPayloadException("Could not handle internal lib directory", e);
-            }
-            finally
-            {
-                IOUtils.closeQuietly(is);
-                IOUtils.closeQuietly(os);
-                Helpers.closeQuietly(zf);
-            }
+            File[] files = LibraryStore.get(node).putLibraries(jd.getApplicationName(), jarFile);
 
             // If libs were extracted, put in cache and return
-            if (libDirExtracted.isDirectory())
+            if (files.length > 0)
             {
-                FileFilter fileFilter = new WildcardFileFilter("*.jar");
-                File[] files = libDirExtracted.listFiles(fileFilter);
                 URL[] libUrls = new URL[files.length];
                 try
                 {
@@ -1,13 +1,20 @@
 package com.enioka.jqm.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 
 import javax.persistence.EntityManager;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.jboss.shrinkwrap.resolver.api.maven.ConfigurableMavenResolverSystem;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
@@ -15,75 +22,276 @@ import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenRemoteRepositorie
 import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenUpdatePolicy;
 
 import com.enioka.jqm.jpamodel.GlobalParameter;
-import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.JobDef;
+import com.enioka.jqm.jpamodel.Node;
 
+/**
+ * Resolves the classpath of job definitions which are given as Maven coordinates.<br>
+ * As transitive resolution is costly, its results are cached inside a file in the temporary directory of the node, so the cache survives
+ * engine restarts. An entry is keyed by the coordinates and the repository configuration, and is dropped as soon as one of its files is
+ * missing or was modified after the resolution. SNAPSHOT artifacts (or artifacts depending on SNAPSHOTs) are never cached. The whole cache
+ * can also be cleared through JMX (see {@link JqmEngineMBean#clearMavenResolutionCache()}).<br>
+ * There is one resolver per engine. This object is thread-safe.
+ */
 public class LibraryResolverMaven
 {
     private static Logger jqmlogger = Logger.getLogger(LibraryResolverMaven.class);
 
-    URL[] resolve(JobInstance ji, EntityManager em) throws JqmPayloadException
+    static final String CACHE_FILE_NAME = "mavenResolutionCache.properties";
+
+    /**
+     * The parameters used by the resolver. Read in a single query on each resolution, as none of them requires a restart.
+     */
+    static class MavenConfiguration
     {
-        ConfigurableMavenResolverSystem resolver = getMavenResolver(em);
+        List<String> repositories = new ArrayList<String>();
+        List<Integer> repositoryIds = new ArrayList<Integer>();
+        String customSettings = null;
+        String customSettingsFile = null;
+        boolean cacheEnabled = true;
 
-        try
+        String getCacheKey(String coordinates)
         {
-            return extractMavenResults(resolver.resolve(ji.getJd().getJarPath()).withTransitivity().asFile());
+            return coordinates + "|" + customSettings + "|" + customSettingsFile + "|" + repositories;
         }
-        catch (JqmPayloadException e)
+    }
+
+    private Properties cache = null;
+    private File cacheFile = null;
+
+    URL[] resolve(Node node, JobDef jd, EntityManager em) throws JqmPayloadException
+    {
+        String coordinates = jd.getJarPath();
+        MavenConfiguration conf = getConfiguration(em);
+        boolean useCache = conf.cacheEnabled && !isSnapshot(coordinates);
+        String key = conf.getCacheKey(coordinates);
+
+        if (useCache)
         {
-            throw e;
+            File[] cached = getFromCache(node, key);
+            if (cached != null)
+            {
+                jqmlogger.debug("Using cached Maven resolution for " + coordinates);
+                return extractMavenResults(cached);
+            }
+        }
+
+        File[] depFiles;
+        try
+        {
+            depFiles = getMavenResolver(conf).resolve(coordinates).withTransitivity().asFile();
         }
         catch (Exception e)
         {
             throw new JqmPayloadException("Could not resolve a Maven payload path", e);
         }
 
+        URL[] res = extractMavenResults(depFiles);
+        if (useCache)
+        {
+            putInCache(node, key, depFiles);
+        }
+        return res;
     }
 
-    static ConfigurableMavenResolverSystem getMavenResolver(EntityManager em)
+    static boolean isSnapshot(String coordinatesOrPath)
     {
-        // Retrieve resolver configuration
-        List<GlobalParameter> repolist = em.createQuery("SELECT gp FROM GlobalParameter gp WHERE gp.key = :repo", GlobalParameter.class)
-                .setParameter("repo", "mavenRepo").getResultList();
-        List<GlobalParameter> settings = em.createQuery("SELECT gp FROM GlobalParameter gp WHERE gp.key = :k", GlobalParameter.class)
-                .setParameter("k", "mavenSettingsCL").getResultList();
-        List<GlobalParameter> settingFiles = em.createQuery("SELECT gp FROM GlobalParameter gp WHERE gp.key = :k", GlobalParameter.class)
-                .setParameter("k", "mavenSettingsFile").getResultList();
+        return coordinatesOrPath.contains("SNAPSHOT");
+    }
 
-        boolean withCentral = false;
-        String withCustomSettings = null;
-        String withCustomSettingsFile = null;
-        if (settings.size() == 1 && settingFiles.isEmpty())
+    // ////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Resolution cache
+    // ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void loadCache(Node node)
+    {
+        if (cache != null)
         {
-            jqmlogger.trace("Custom settings file will be used: " + settings.get(0).getValue());
-            withCustomSettings = settings.get(0).getValue();
+            return;
         }
-        if (settingFiles.size() == 1)
+        cache = new Properties();
+        cacheFile = new File(FilenameUtils.concat(new File(node.getTmpDirectory()).getAbsolutePath(), CACHE_FILE_NAME));
+        if (!cacheFile.isFile())
         {
-            jqmlogger.trace("Custom settings file will be used: " + settingFiles.get(0).getValue());
-            withCustomSettingsFile = settingFiles.get(0).getValue();
+            return;
         }
 
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(cacheFile);
+            cache.load(is);
+            jqmlogger.debug("Maven resolution cache loaded from " + cacheFile.getAbsolutePath() + " with " + cache.size() + " entries");
+        }
+        catch (Exception e)
+        {
+            jqmlogger.warn("Maven resolution cache file " + cacheFile.getAbsolutePath() + " could not be read and will be ignored", e);
+            cache.clear();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns the cached resolution, or null if there is none or if it is stale (in which case it is removed from the cache).
+     */
+    synchronized File[] getFromCache(Node node, String key)
+    {
+        loadCache(node);
+        String entry = cache.getProperty(key);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        String[] segments = entry.split(File.pathSeparator);
+        long resolutionTime;
+        try
+        {
+            resolutionTime = Long.parseLong(segments[0]);
+        }
+        catch (NumberFormatException e)
+        {
+            jqmlogger.warn("Maven resolution cache entry for " + key + " is invalid. It will be resolved again.");
+            cache.remove(key);
+            storeCache();
+            return null;
+        }
+        File[] res = new File[segments.length - 1];
+        for (int i = 1; i < segments.length; i++)
+        {
+            res[i - 1] = new File(segments[i]);
+            if (!res[i - 1].isFile() || res[i - 1].lastModified() > resolutionTime)
+            {
+                jqmlogger.info("Maven resolution cache entry for " + key + " is stale as " + segments[i]
+                        + " is missing or was modified. It will be resolved again.");
+                cache.remove(key);
+                storeCache();
+                return null;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Removes all the entries of the cache, so that all Maven payloads are resolved again on their next launch.
+     */
+    synchronized void clearCache(Node node)
+    {
+        loadCache(node);
+        jqmlogger.info("Maven resolution cache is cleared (" + cache.size() + " entries)");
+        cache.clear();
+        storeCache();
+    }
+
+    synchronized void putInCache(Node node, String key, File[] depFiles)
+    {
+        loadCache(node);
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.currentTimeMillis());
+        for (File f : depFiles)
+        {
+            if (isSnapshot(f.getName()))
+            {
+                jqmlogger.debug("Maven resolution for " + key + " will not be cached as it depends on SNAPSHOT " + f.getName());
+                return;
+            }
+            sb.append(File.pathSeparator).append(f.getAbsolutePath());
+        }
+        cache.setProperty(key, sb.toString());
+        storeCache();
+    }
+
+    private void storeCache()
+    {
+        try
+        {
+            Helpers.storeProperties(cache, cacheFile, "JQM Maven resolution cache - can be safely deleted");
+        }
+        catch (IOException e)
+        {
+            jqmlogger.warn("Maven resolution cache could not be saved. It will only be kept in memory.", e);
+        }
+    }
+
+    // ////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Resolver configuration
+    // ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    static MavenConfiguration getConfiguration(EntityManager em)
+    {
+        List<GlobalParameter> prms = em
+                .createQuery("SELECT gp FROM GlobalParameter gp WHERE gp.key IN (:keys) ORDER BY gp.id", GlobalParameter.class)
+                .setParameter("keys", Arrays.asList("mavenRepo", "mavenSettingsCL", "mavenSettingsFile", "mavenResolutionCache"))
+                .getResultList();
+
+        MavenConfiguration res = new MavenConfiguration();
+        int nbSettings = 0;
+        for (GlobalParameter gp : prms)
+        {
+            if ("mavenRepo".equals(gp.getKey()))
+            {
+                res.repositories.add(gp.getValue());
+                res.repositoryIds.add(gp.getId());
+            }
+            else if ("mavenSettingsCL".equals(gp.getKey()))
+            {
+                res.customSettings = gp.getValue();
+                nbSettings++;
+            }
+            else if ("mavenSettingsFile".equals(gp.getKey()))
+            {
+                jqmlogger.trace("Custom settings file will be used: " + gp.getValue());
+                res.customSettingsFile = gp.getValue();
+            }
+            else if ("mavenResolutionCache".equals(gp.getKey()))
+            {
+                res.cacheEnabled = Boolean.parseBoolean(gp.getValue());
+            }
+        }
+        if (nbSettings != 1 || res.customSettingsFile != null)
+        {
+            res.customSettings = null;
+        }
+        if (res.customSettings != null)
+        {
+            jqmlogger.trace("Custom settings file will be used: " + res.customSettings);
+        }
+        return res;
+    }
+
+    static ConfigurableMavenResolverSystem getMavenResolver(EntityManager em)
+    {
+        return getMavenResolver(getConfiguration(em));
+    }
+
+    static ConfigurableMavenResolverSystem getMavenResolver(MavenConfiguration conf)
+    {
+        boolean withCentral = false;
+
         // Configure resolver
         ConfigurableMavenResolverSystem resolver = Maven.configureResolver();
-        if (withCustomSettings != null && withCustomSettingsFile == null)
+        if (conf.customSettings != null)
         {
-            resolver.fromClassloaderResource(withCustomSettings);
+            resolver.fromClassloaderResource(conf.customSettings);
         }
-        if (withCustomSettingsFile != null)
+        if (conf.customSettingsFile != null)
         {
-            resolver.fromFile(withCustomSettingsFile);
+            resolver.fromFile(conf.customSettingsFile);
         }
 
-        for (GlobalParameter gp : repolist)
+        for (int i = 0; i < conf.repositories.size(); i++)
         {
-            if (gp.getValue().contains("repo1.maven.org"))
+            String repo = conf.repositories.get(i);
+            if (repo.contains("repo1.maven.org"))
             {
                 withCentral = true;
             }
-            resolver = resolver
-                    .withRemoteRepo(MavenRemoteRepositories.createRemoteRepository(gp.getId().toString(), gp.getValue(), "default")
-                            .setUpdatePolicy(MavenUpdatePolicy.UPDATE_POLICY_NEVER));
+            resolver = resolver.withRemoteRepo(MavenRemoteRepositories
+                    .createRemoteRepository(conf.repositoryIds.get(i).toString(), repo, "default")
+                    .setUpdatePolicy(MavenUpdatePolicy.UPDATE_POLICY_NEVER));
         }
         resolver.withMavenCentralRepo(withCentral);
         return resolver;
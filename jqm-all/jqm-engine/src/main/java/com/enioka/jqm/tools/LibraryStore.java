@@ -0,0 +1,360 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.Node;
+
+/**
+ * A node-wide store for the libraries extracted from the lib directory inside payload jars. Entries are named after the SHA-256 of their
+ * content, so a library shared by many payloads (or by successive versions of the same payload) is only written once, and the class paths
+ * of all these payloads point to the same file.<br>
+ * Each entry is referenced by the job definitions using it. References are saved inside the store so they survive restarts. An entry which
+ * is not referenced anymore is not deleted at once, as it may still be inside the class path of a running payload or of a pooled class
+ * loader: unreferenced entries are only deleted when no class loader can use them, i.e. on engine startup (see {@link #collect()}).<br>
+ * References are only known by the JVM which uses the store, so each node has its own store even when nodes share a temporary
+ * directory. There is one store per directory inside the JVM. This object is thread-safe.
+ */
+class LibraryStore
+{
+    private static Logger jqmlogger = Logger.getLogger(LibraryStore.class);
+    private static final Map<File, LibraryStore> stores = new HashMap<File, LibraryStore>();
+
+    static final String STORE_DIR_NAME = "libstore";
+    private static final String REFERENCES_FILE_NAME = "references.properties";
+
+    private final File root;
+    private final File referencesFile;
+
+    // Owner (job definition) -> referenced entries. This is what is persisted.
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+    // Entry -> number of owners referencing it.
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    /**
+     * The store of the given node, inside its temporary directory.
+     */
+    static LibraryStore get(Node node)
+    {
+        return get(getDirectory(node));
+    }
+
+    static File getDirectory(Node node)
+    {
+        return new File(new File(new File(node.getTmpDirectory()).getAbsoluteFile(), STORE_DIR_NAME),
+                node.getName().replaceAll("[^a-zA-Z0-9._-]", "_"));
+    }
+
+    static synchronized LibraryStore get(File root)
+    {
+        File key = root.getAbsoluteFile();
+        LibraryStore res = stores.get(key);
+        if (res == null)
+        {
+            res = new LibraryStore(key);
+            stores.put(key, res);
+        }
+        return res;
+    }
+
+    private LibraryStore(File root)
+    {
+        this.root = root;
+        this.referencesFile = new File(root, REFERENCES_FILE_NAME);
+
+        if (referencesFile.isFile())
+        {
+            Properties p = new Properties();
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(referencesFile);
+                p.load(is);
+                for (String owner : p.stringPropertyNames())
+                {
+                    Set<String> entries = new LinkedHashSet<String>();
+                    for (String entry : p.getProperty(owner).split(","))
+                    {
+                        if (!entry.isEmpty())
+                        {
+                            entries.add(entry);
+                        }
+                    }
+                    addReferences(owner, entries);
+                }
+            }
+            catch (IOException e)
+            {
+                // Only means that unreferenced entries may be collected too early - and simply extracted again.
+                jqmlogger.warn("Library store references could not be read from " + referencesFile.getAbsolutePath(), e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        jqmlogger.debug("Library store " + root.getAbsolutePath() + " contains " + counts.size() + " referenced libraries");
+    }
+
+    /**
+     * Puts all the <code>lib/*.jar</code> files contained inside a jar into the store (if not already there), and makes them the only
+     * entries referenced by the given owner.
+     * 
+     * @return the files inside the store, in the order they appear inside the jar. An empty array if the jar has no lib directory.
+     */
+    File[] putLibraries(String owner, File jarFile) throws JqmPayloadException
+    {
+        ZipFile zf = null;
+        try
+        {
+            zf = new ZipFile(jarFile);
+
+            // Hashing only reads the jar, and is done outside the lock.
+            List<ZipEntry> libs = new ArrayList<ZipEntry>();
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> zes = zf.entries();
+            while (zes.hasMoreElements())
+            {
+                ZipEntry ze = zes.nextElement();
+                if (ze.getName().startsWith("lib/") && ze.getName().endsWith(".jar"))
+                {
+                    libs.add(ze);
+                    names.add(hash(zf, ze) + ".jar");
+                }
+            }
+
+            File[] res = new File[libs.size()];
+            synchronized (this)
+            {
+                for (int i = 0; i < libs.size(); i++)
+                {
+                    res[i] = new File(root, names.get(i));
+                    if (!res[i].isFile())
+                    {
+                        jqmlogger.debug("Adding " + libs.get(i).getName() + " from " + jarFile.getName() + " to the library store as "
+                                + names.get(i));
+                        write(zf, libs.get(i), res[i]);
+                    }
+                }
+                setReferences(owner, new LinkedHashSet<String>(names));
+            }
+            return res;
+        }
+        catch (Exception e)
+        {
+            throw new JqmPayloadException("Could not handle internal lib directory", e);
+        }
+        finally
+        {
+            Helpers.closeQuietly(zf);
+        }
+    }
+
+    /**
+     * Removes the references of all owners which are not inside the given list (e.g. deleted job definitions). The entries only they were
+     * using are deleted by the next {@link #collect()}.
+     */
+    synchronized void retainOwners(Collection<String> owners)
+    {
+        for (String owner : new ArrayList<String>(references.keySet()))
+        {
+            if (!owners.contains(owner))
+            {
+                jqmlogger.debug("Job definition " + owner + " does not exist anymore - its libraries are removed from the library store");
+                setReferences(owner, null);
+            }
+        }
+    }
+
+    /**
+     * Replaces the references of an owner. Null entries remove the owner.
+     */
+    private void setReferences(String owner, Set<String> entries)
+    {
+        Set<String> previous = references.get(owner);
+        if (entries == null ? previous == null : entries.equals(previous))
+        {
+            return;
+        }
+
+        if (entries == null)
+        {
+            references.remove(owner);
+        }
+        else
+        {
+            addReferences(owner, entries);
+        }
+        if (previous != null)
+        {
+            for (String entry : previous)
+            {
+                int count = counts.get(entry) - 1;
+                if (count > 0)
+                {
+                    counts.put(entry, count);
+                }
+                else
+                {
+                    jqmlogger.debug("Library " + entry + " is not referenced anymore - it will be removed from the store on next startup");
+                    counts.remove(entry);
+                }
+            }
+        }
+
+        Properties p = new Properties();
+        for (Map.Entry<String, Set<String>> e : references.entrySet())
+        {
+            StringBuilder sb = new StringBuilder();
+            for (String entry : e.getValue())
+            {
+                sb.append(sb.length() == 0 ? "" : ",").append(entry);
+            }
+            p.setProperty(e.getKey(), sb.toString());
+        }
+        try
+        {
+            Helpers.storeProperties(p, referencesFile, "JQM library store references - do not modify");
+        }
+        catch (IOException e)
+        {
+            jqmlogger.warn("Library store references could not be saved", e);
+        }
+    }
+
+    /**
+     * Deletes the entries which are not referenced anymore. Must only be called when no class loader uses the store, as a running payload
+     * may still use an entry its job definition does not reference anymore (new version of the payload jar...).
+     */
+    synchronized void collect()
+    {
+        File[] files = root.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                if (f.getName().endsWith(".jar") && !counts.containsKey(f.getName()))
+                {
+                    delete(f);
+                }
+            }
+        }
+    }
+
+    private void addReferences(String owner, Set<String> entries)
+    {
+        references.put(owner, entries);
+        for (String entry : entries)
+        {
+            Integer count = counts.get(entry);
+            counts.put(entry, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static void delete(File f)
+    {
+        jqmlogger.debug("Removing unreferenced library " + f.getName() + " from the library store");
+        if (f.exists() && !f.delete())
+        {
+            // May happen on some OS if something outside JQM still uses it. Will be collected on next startup.
+            jqmlogger.warn("Could not remove unreferenced library " + f.getAbsolutePath() + " from the library store");
+        }
+    }
+
+    private void write(ZipFile zf, ZipEntry ze, File target) throws IOException
+    {
+        if (!root.isDirectory() && !root.mkdirs())
+        {
+            throw new IOException("could not create library store directory " + root.getAbsolutePath());
+        }
+
+        // Through a temporary file, so that an entry always has the content its name says.
+        File tmp = new File(target.getAbsolutePath() + ".tmp");
+        InputStream is = null;
+        OutputStream os = null;
+        try
+        {
+            is = zf.getInputStream(ze);
+            os = new FileOutputStream(tmp);
+            IOUtils.copy(is, os);
+            os.close();
+            if (!tmp.renameTo(target))
+            {
+                throw new IOException("could not create library store entry " + target.getAbsolutePath());
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+            if (tmp.exists() && !tmp.delete())
+            {
+                jqmlogger.warn("could not delete temporary file " + tmp.getAbsolutePath());
+            }
+        }
+    }
+
+    private static String hash(ZipFile zf, ZipEntry ze) throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        InputStream is = null;
+        try
+        {
+            is = zf.getInputStream(ze);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                md.update(buffer, 0, read);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest())
+        {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -22,7 +22,7 @@ import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Locale;
@@ -56,6 +56,7 @@ class Loader implements Runnable, LoaderMBean
 
     private JobInstance job = null;
     private Node node = null;
+    private Map<String, String> prefetchedParameters = null;
 
     private final QueuePoller p;
     private final JqmEngine engine;
@@ -68,18 +69,39 @@ class Loader implements Runnable, LoaderMBean
 
     // These two fields are instance-level in order to allow an easy endOfRunDb external call
     private Calendar endDate = null;
+    private long endTimeMs = 0;
     private State resultStatus = State.ATTRIBUTED;
+    private ReportWriter.Report report = null; // Progress and messages not yet written when the run ended
 
     Loader(JobInstance job, JqmEngine engine, QueuePoller p, ClassloaderManager clm)
+    {
+        this(job, null, engine, p, clm);
+    }
+
+    /**
+     * Constructor used by the {@link QueuePoller}, which has already set the JI to RUNNING and read everything needed to start it inside
+     * the transaction which attributed the JI. The loader then does not need to read the JI once again.
+     * 
+     * @param job
+     *            the JI, with its JobDef, Node and Queue set.
+     * @param parameters
+     *            the runtime parameters of the JI. If null, the JI is read from the database as with the other constructor.
+     */
+    Loader(JobInstance job, Map<String, String> parameters, JqmEngine engine, QueuePoller p, ClassloaderManager clm)
     {
         this.p = p;
         this.engine = engine;
         this.clm = clm;
         this.job = job;
+        this.prefetchedParameters = parameters;
+        if (parameters != null)
+        {
+            this.node = job.getNode();
+        }
         this.threadName = this.job.getJd().getApplicationName() + ";payload;" + this.job.getId();
 
         // JMX
-        if (p != null && this.p.getEngine().loadJmxBeans)
+        if (p != null && this.p.getEngine().loadJmxBeans && this.p.getEngine().loadJobInstanceJmxBeans)
         {
             MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
             try
@@ -132,9 +154,12 @@ class Loader implements Runnable, LoaderMBean
         {
             em = Helpers.getNewEm();
 
-            // Refresh entities from the current EM
-            this.job = em.find(JobInstance.class, job.getId());
-            this.node = em.find(Node.class, job.getNode().getId());
+            // Refresh entities from the current EM (not needed if everything was read by the poller)
+            if (this.prefetchedParameters == null)
+            {
+                this.job = em.find(JobInstance.class, job.getId());
+                this.node = em.find(Node.class, job.getNode().getId());
+            }
 
             // Log
             this.resultStatus = State.SUBMITTED;
@@ -146,32 +171,40 @@ class Loader implements Runnable, LoaderMBean
             {
                 jqmlogger.info("Job Instance " + job.getId() + " will actually not truly run as its Job Definition is disabled");
                 em.getTransaction().begin();
-                this.job.setProgress(-1);
+                em.createQuery("UPDATE JobInstance j SET j.progress = -1 WHERE j.id = :i").setParameter("i", job.getId()).executeUpdate();
                 em.getTransaction().commit();
                 resultStatus = State.ENDED;
                 endOfRun();
                 return;
             }
 
-            // Parameters
-            params = new HashMap<String, String>();
-            for (RuntimeParameter jp : em.createQuery("SELECT p FROM RuntimeParameter p WHERE p.ji = :i", RuntimeParameter.class)
-                    .setParameter("i", job.getId()).getResultList())
+            if (this.prefetchedParameters != null)
             {
-                jqmlogger.trace("Parameter " + jp.getKey() + " - " + jp.getValue());
-                params.put(jp.getKey(), jp.getValue());
+                // The poller has already set the JI to RUNNING when attributing it.
+                params = this.prefetchedParameters;
             }
-
-            // Update of the job status, dates & co
-            em.getTransaction().begin();
-            em.refresh(job, LockModeType.PESSIMISTIC_WRITE);
-            if (!job.getState().equals(State.KILLED))
+            else
             {
-                // Use a query to avoid locks on FK checks (with setters, every field is updated!)
-                em.createQuery("UPDATE JobInstance j SET j.executionDate = current_timestamp(), state = 'RUNNING' WHERE j.id = :i")
-                        .setParameter("i", job.getId()).executeUpdate();
+                // Parameters
+                params = new HashMap<String, String>();
+                for (RuntimeParameter jp : em.createQuery("SELECT p FROM RuntimeParameter p WHERE p.ji = :i", RuntimeParameter.class)
+                        .setParameter("i", job.getId()).getResultList())
+                {
+                    jqmlogger.trace("Parameter " + jp.getKey() + " - " + jp.getValue());
+                    params.put(jp.getKey(), jp.getValue());
+                }
+
+                // Update of the job status, dates & co
+                em.getTransaction().begin();
+                em.refresh(job, LockModeType.PESSIMISTIC_WRITE);
+                if (!job.getState().equals(State.KILLED))
+                {
+                    // Use a query to avoid locks on FK checks (with setters, every field is updated!)
+                    em.createQuery("UPDATE JobInstance j SET j.executionDate = current_timestamp(), state = 'RUNNING' WHERE j.id = :i")
+                            .setParameter("i", job.getId()).executeUpdate();
+                }
+                em.getTransaction().commit();
             }
-            em.getTransaction().commit();
 
             jobClassLoader = this.clm.getClassloader(job, em);
         }
@@ -219,7 +252,8 @@ class Loader implements Runnable, LoaderMBean
         // Go! (launches the main function in the startup class designated in the manifest)
         try
         {
-            jobClassLoader.launchJar(job, params);
+            jobClassLoader.launchJar(job, params, this.engine != null ? this.engine.getKillWatcher() : null,
+                    this.engine != null ? this.engine.getReportWriter() : null);
             this.resultStatus = State.ENDED;
         }
         catch (JqmKillException e)
@@ -259,6 +293,7 @@ class Loader implements Runnable, LoaderMBean
     {
         // Register end date as soon as possible to be as exact as possible (sending mails may take time for example)
         endDate = GregorianCalendar.getInstance(Locale.getDefault());
+        endTimeMs = endDate.getTimeInMillis();
 
         // This block is needed for external payloads, as the single runner may forcefully call endOfRun.
         synchronized (this)
@@ -279,7 +314,48 @@ class Loader implements Runnable, LoaderMBean
             p.decreaseNbThread(this.job.getId());
         }
 
-        // Send e-mail before releasing the slot - it may be long
+        // Clean JDBC connections
+        final ClassLoader payloadClassLoader = Thread.currentThread().getContextClassLoader();
+        ClassLoaderLeakCleaner.cleanJdbc(Thread.currentThread());
+
+        // Restore class loader
+        if (this.classLoaderToRestoreAtEnd != null)
+        {
+            Thread.currentThread().setContextClassLoader(classLoaderToRestoreAtEnd);
+            jqmlogger.trace("Class Loader was correctly restored");
+        }
+
+        // Unregister logger
+        unregisterLogger();
+
+        // All the rest does not need the payload thread, which can be given back right now if the engine has housekeeping threads.
+        Runnable housekeeping = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                housekeeping(payloadClassLoader);
+            }
+        };
+        if (this.engine != null && this.engine.getHousekeepingExecutor() != null)
+        {
+            this.engine.getHousekeepingExecutor().execute(housekeeping);
+        }
+        else
+        {
+            housekeeping.run();
+        }
+    }
+
+    /**
+     * The part of the end of run which is not bound to the payload thread.
+     * 
+     * @param payloadClassLoader
+     *            the class loader of the payload, to clean.
+     */
+    private void housekeeping(ClassLoader payloadClassLoader)
+    {
+        // Send e-mail before storing the results - it may be long
         if (job.getEmail() != null)
         {
             try
@@ -292,17 +368,11 @@ class Loader implements Runnable, LoaderMBean
             }
         }
 
-        // Clean class loader
-        ClassLoaderLeakCleaner.clean(Thread.currentThread().getContextClassLoader());
-
-        // Clean JDBC connections
-        ClassLoaderLeakCleaner.cleanJdbc(Thread.currentThread());
-
-        // Restore class loader
-        if (this.classLoaderToRestoreAtEnd != null)
+        // Clean class loader, and give it back if it can be reused
+        ClassLoaderLeakCleaner.clean(payloadClassLoader);
+        if (this.clm != null)
         {
-            Thread.currentThread().setContextClassLoader(classLoaderToRestoreAtEnd);
-            jqmlogger.trace("Class Loader was correctly restored");
+            this.clm.releaseClassloader(payloadClassLoader, this.resultStatus);
         }
 
         // Clean temp dir (if it exists)
@@ -328,7 +398,7 @@ class Loader implements Runnable, LoaderMBean
         }
 
         // Unregister MBean
-        if (p != null && this.p.getEngine().loadJmxBeans)
+        if (name != null)
         {
             try
             {
@@ -341,11 +411,21 @@ class Loader implements Runnable, LoaderMBean
             }
         }
 
-        // Unregister logger
-        unregisterLogger();
+        // Progress and messages still buffered are stored with the History. (Must be taken before any DB lock is held)
+        if (this.engine != null && this.engine.getReportWriter() != null)
+        {
+            this.report = this.engine.getReportWriter().take(this.job.getId());
+        }
 
-        // Part needing DB connection with specific failure handling code.
-        endOfRunDb();
+        // Part needing DB connection with specific failure handling code. Grouped with other job instances if the engine allows it.
+        if (this.engine != null && this.engine.getFinalizationWriter() != null && !this.isDelayed)
+        {
+            this.engine.getFinalizationWriter().add(this);
+        }
+        else
+        {
+            endOfRunDb();
+        }
     }
 
     private void unregisterLogger()
@@ -369,24 +449,20 @@ class Loader implements Runnable, LoaderMBean
         try
         {
             // Retrieve the object to update
-            job = em.find(JobInstance.class, this.job.getId());
-
-            // Which end time should we use? Default is always use DB time to avoid time lips between servers.
-            Date dbTimeTmp = em.createQuery("SELECT current_timestamp() AS A from GlobalParameter", Date.class).getSingleResult();
-            Calendar dbTime = Calendar.getInstance();
-            dbTime.setTime(dbTimeTmp);
-            if (!this.isDelayed)
-            {
-                // In case of delayed finalization, use the stored time instead of db time.
-                this.endDate = dbTime;
-            }
+            JobInstance ji = em.find(JobInstance.class, this.job.getId());
+            long dbOffsetMs = (this.engine != null ? this.engine.getDbClock() : new DbClock()).getOffsetMs(em);
 
             // Done: put inside history & remove instance from queue.
             em.getTransaction().begin();
-            History h = Helpers.createHistory(job, em, this.resultStatus, endDate);
-            jqmlogger.trace("An History was just created for job instance " + h.getId());
+            createHistory(ji, em, dbOffsetMs);
             em.createQuery("DELETE FROM JobInstance WHERE id = :i").setParameter("i", job.getId()).executeUpdate();
+            if (this.engine != null && this.engine.isDbNotifications())
+            {
+                CompletionBus.notifyOtherNodes(em, Collections.singletonList(ji));
+            }
             em.getTransaction().commit();
+
+            CompletionBus.jobInstanceEnded(ji.getId(), ji.getParentId());
         }
         catch (RuntimeException e)
         {
@@ -398,6 +474,36 @@ class Loader implements Runnable, LoaderMBean
         }
     }
 
+    /**
+     * Creates the {@link History} of the job instance inside the current transaction. Removing the job instance is left to the caller.
+     * 
+     * @param ji
+     *            the job instance, attached to the given EntityManager.
+     * @param dbOffsetMs
+     *            difference between the database clock and the local clock, used to compute the end date in database time (unless
+     *            finalization was delayed by a database failure, in which case the local time of the end of the run is kept).
+     */
+    void createHistory(JobInstance ji, EntityManager em, long dbOffsetMs)
+    {
+        this.job = ji;
+
+        // Which end time should we use? Default is always use DB time to avoid time lips between servers.
+        if (!this.isDelayed)
+        {
+            // In case of delayed finalization, use the stored time instead of db time.
+            // The run has ended when its slot was released (another JI may already have started since): db time, but at that moment.
+            this.endDate = Calendar.getInstance();
+            this.endDate.setTimeInMillis(this.endTimeMs + dbOffsetMs);
+        }
+
+        if (this.report != null)
+        {
+            ReportWriter.write(this.report, ji, em);
+        }
+        History h = Helpers.createHistory(job, em, this.resultStatus, endDate);
+        jqmlogger.trace("An History was just created for job instance " + h.getId());
+    }
+
     private void firstBlockDbFailureAnalysis(Exception e)
     {
         if (Helpers.testDbFailure(e))
@@ -417,7 +523,7 @@ class Loader implements Runnable, LoaderMBean
         }
     }
 
-    private void endBlockDbFailureAnalysis(RuntimeException e)
+    void endBlockDbFailureAnalysis(RuntimeException e)
     {
         if (Helpers.testDbFailure(e))
         {
@@ -512,6 +618,7 @@ class Loader implements Runnable, LoaderMBean
         {
             return 0L;
         }
-        return (Calendar.getInstance().getTimeInMillis() - this.job.getExecutionDate().getTimeInMillis()) / 1000;
+        Calendar now = this.engine != null ? this.engine.getDbClock().now() : Calendar.getInstance();
+        return (now.getTimeInMillis() - this.job.getExecutionDate().getTimeInMillis()) / 1000;
     }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of threads for running {@link Loader}s and {@link LoaderExternal}s, so as not to create and destroy a thread for each job
+ * instance. It keeps at least <code>min</code> threads alive, creates new threads (up to <code>max</code>) rather than queueing as long
+ * as all existing threads are busy, and only queues beyond <code>max</code>. Idle threads above <code>min</code> end after a while.<br>
+ * Between two job instances, the thread is given back its pool name and context class loader, and is detached from the per-launch log
+ * files. Loaders do that themselves on normal paths, but a pooled thread must never leak a job context into the next job.
+ */
+class LoaderExecutor extends ThreadPoolExecutor
+{
+    private static Logger jqmlogger = Logger.getLogger(LoaderExecutor.class);
+    private static final long KEEP_ALIVE_S = 60;
+
+    private final ClassLoader initialClassLoader;
+
+    // Tasks given to execute and not finished yet (whether queued or running). Unlike getActiveCount, this is exact.
+    private final AtomicInteger submittedCount = new AtomicInteger(0);
+
+    LoaderExecutor(int min, int max)
+    {
+        super(min, max, KEEP_ALIVE_S, TimeUnit.SECONDS, new LoaderQueue(), new LoaderThreadFactory(), new LoaderQueuePolicy());
+        ((LoaderQueue) getQueue()).executor = this;
+        this.initialClassLoader = Thread.currentThread().getContextClassLoader();
+        jqmlogger.info("Job instances will run inside a thread pool of " + min + " to " + max + " threads");
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        submittedCount.incrementAndGet();
+        try
+        {
+            super.execute(command);
+        }
+        catch (RuntimeException e)
+        {
+            submittedCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t)
+    {
+        super.afterExecute(r, t);
+        submittedCount.decrementAndGet();
+        Thread current = Thread.currentThread();
+        current.setName(LoaderThreadFactory.IDLE_NAME);
+        current.setContextClassLoader(initialClassLoader);
+        if (System.out instanceof MultiplexPrintStream)
+        {
+            ((MultiplexPrintStream) System.out).unregisterThread();
+        }
+        if (System.err instanceof MultiplexPrintStream)
+        {
+            ((MultiplexPrintStream) System.err).unregisterThread();
+        }
+    }
+
+    /**
+     * The standard executor only creates threads above the minimum when its queue refuses new tasks. So this queue refuses them while
+     * all threads are busy and the maximum is not reached. Busy threads are deduced from the count of submitted tasks, which already
+     * includes the task being offered.
+     */
+    private static class LoaderQueue extends LinkedBlockingQueue<Runnable>
+    {
+        private static final long serialVersionUID = 5374018374920162043L;
+        private transient LoaderExecutor executor;
+
+        @Override
+        public boolean offer(Runnable r)
+        {
+            if (executor != null && executor.submittedCount.get() > executor.getPoolSize()
+                    && executor.getPoolSize() < executor.getMaximumPoolSize())
+            {
+                return false;
+            }
+            return super.offer(r);
+        }
+
+        boolean force(Runnable r)
+        {
+            return super.offer(r);
+        }
+    }
+
+    /**
+     * Called when the queue has refused a task and no thread could be created (maximum reached in the meantime): queue it anyway.
+     */
+    private static class LoaderQueuePolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown() || !((LoaderQueue) executor.getQueue()).force(r))
+            {
+                throw new JqmRuntimeException("Loader thread pool is shut down - job instance cannot run");
+            }
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory
+    {
+        static final String IDLE_NAME = "LOADER_POOL;idle;";
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, IDLE_NAME);
+            jqmlogger.trace("Creating loader pool thread number " + count.incrementAndGet());
+            return t;
+        }
+    }
+}
@@ -19,10 +19,15 @@
 package com.enioka.jqm.tools;
 
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -33,14 +38,16 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
-import javax.persistence.LockModeType;
 import javax.persistence.LockTimeoutException;
 
 import org.apache.log4j.Logger;
 
 import com.enioka.jqm.jpamodel.DeploymentParameter;
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.JobDef;
 import com.enioka.jqm.jpamodel.JobInstance;
 import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.jpamodel.RuntimeParameter;
 import com.enioka.jqm.jpamodel.State;
 
 /**
@@ -50,16 +57,38 @@ class QueuePoller implements Runnable, QueuePollerMBean
 {
     private static Logger jqmlogger = Logger.getLogger(QueuePoller.class);
 
+    /**
+     * Lowest accepted value for pollerMinIntervalMs.
+     */
+    private static final int MIN_ADAPTIVE_INTERVAL_MS = 10;
+
+    /**
+     * Attribution of job instances to this node. They go straight to RUNNING, as their loader thread is started right after the commit.
+     */
+    private static final String CLAIM_QUERY = "UPDATE JobInstance j SET j.state = 'RUNNING', j.node = :n, "
+            + "j.attributionDate = current_timestamp(), j.executionDate = current_timestamp() WHERE j.id IN (:ids)";
+
     private Queue queue = null;
     private JqmEngine engine;
     private int maxNbThread = 10;
     private int pollingInterval = 10000;
+    private boolean batchDequeue = false;
+    private boolean adaptivePolling = false;
+    private int minPollingInterval = 500;
+    private int maxPollingInterval = 60000;
+    private volatile int currentPollingInterval = 10000;
+    private DequeueStrategy dequeueStrategy;
+    private volatile FairSharePolicy fairShare;
 
     private boolean run = true;
     private AtomicInteger actualNbThread = new AtomicInteger(0);
     private boolean hasStopped = true;
     private Calendar lastLoop = null;
     private Map<Integer, Date> peremption = new ConcurrentHashMap<Integer, Date>();
+    private Map<Integer, Integer> highlanders = new ConcurrentHashMap<Integer, Integer>(); // JI ID -> JD ID, for running highlanders
+    private Map<Integer, JobDef> reservations = new ConcurrentHashMap<Integer, JobDef>(); // JI ID -> JD, for resource weighted JI
+    private Map<Integer, Map<String, String>> claimedParameters = new HashMap<Integer, Map<String, String>>(); // JI ID -> parameters
+    private Map<Integer, JobInstance> running = new ConcurrentHashMap<Integer, JobInstance>(); // JI ID -> JI as launched, for monitoring
 
     private ObjectName name = null;
 
@@ -102,6 +131,21 @@ class QueuePoller implements Runnable, QueuePollerMBean
         this.queue = q;
         this.pollingInterval = interval;
         this.maxNbThread = nbThreads;
+        this.batchDequeue = Boolean.parseBoolean(Helpers.getParameter("pollerBatchDequeue", "false", em));
+        this.dequeueStrategy = DequeueStrategy.create(em);
+        this.fairShare = FairSharePolicy.create(q.getFairShareKey(), this.dequeueStrategy);
+        this.adaptivePolling = Boolean.parseBoolean(Helpers.getParameter("pollerAdaptiveInterval", "false", em));
+        this.minPollingInterval = Integer.parseInt(Helpers.getParameter("pollerMinIntervalMs", "500", em));
+        this.maxPollingInterval = Integer.parseInt(Helpers.getParameter("pollerMaxIntervalMs", "60000", em));
+        if (this.minPollingInterval < MIN_ADAPTIVE_INTERVAL_MS)
+        {
+            // Otherwise the poller would loop on the database without any pause.
+            jqmlogger.warn("Parameter pollerMinIntervalMs is too low (" + this.minPollingInterval + "). " + MIN_ADAPTIVE_INTERVAL_MS
+                    + "ms will be used instead");
+            this.minPollingInterval = MIN_ADAPTIVE_INTERVAL_MS;
+        }
+        this.maxPollingInterval = Math.max(this.minPollingInterval, this.maxPollingInterval);
+        this.currentPollingInterval = interval;
         em.close();
         reset();
         registerMBean();
@@ -137,6 +181,11 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
     }
 
+    /**
+     * Claims the first suitable job instance of the queue, if any. When candidates are rejected (highlander, or not enough resources left
+     * on the node), the head of the queue is read once again with more candidates. This is only done once for resources, as with a full
+     * node every candidate would be rejected anyway.
+     */
     protected JobInstance dequeue(EntityManager em, int additionalSlots)
     {
         // Free room?
@@ -146,21 +195,16 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
 
         // Get the list of all jobInstance within the defined queue, ordered by position
-        List<JobInstance> availableJobs = em
-                .createQuery(
-                        "SELECT j FROM JobInstance j LEFT JOIN FETCH j.jd WHERE j.queue = :q AND j.state = :s ORDER BY j.internalPosition ASC",
-                        JobInstance.class)
-                .setParameter("q", queue).setParameter("s", State.SUBMITTED).setMaxResults(maxNbThread + additionalSlots).getResultList();
-
-        em.getTransaction().begin();
-        int rejectedCauseHighlander = 0;
+        List<JobInstance> availableJobs = getCandidates(em, maxNbThread + additionalSlots);
+
+        int rejectedCauseHighlander = 0, rejectedCauseResources = 0;
+        Set<Integer> busyHighlanders = null;
         for (JobInstance res : availableJobs)
         {
-            // Lock is given when object is read, not during select... stupid.
-            // So we must check if the object is still SUBMITTED.
+            boolean locked;
             try
             {
-                em.refresh(res, LockModeType.PESSIMISTIC_WRITE);
+                locked = dequeueStrategy.lock(em, res);
             }
             catch (EntityNotFoundException e)
             {
@@ -169,7 +213,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
                 // But beware, rollback detaches all entities from the session! So we simply give up and retry.
                 // As this is a very rare case, this is acceptable performance-wise.
                 em.getTransaction().rollback();
-                return dequeue(em, rejectedCauseHighlander);
+                return dequeue(em, rejectedCauseHighlander + rejectedCauseResources);
             }
             catch (LockTimeoutException e)
             {
@@ -177,50 +221,247 @@ class QueuePoller implements Runnable, QueuePollerMBean
                 em.getTransaction().rollback();
                 return null;
             }
-            if (!res.getState().equals(State.SUBMITTED))
+            if (!locked)
             {
                 // Already eaten by another engine, not yet done
                 continue;
             }
 
-            // Highlander?
-            if (res.getJd().isHighlander() && !highlanderPollingMode(res, em))
+            // Highlander? (evaluated once for all candidates, and only if needed)
+            if (res.getJd().isHighlander())
             {
-                rejectedCauseHighlander++;
+                if (busyHighlanders == null)
+                {
+                    busyHighlanders = getBusyHighlanders(availableJobs, em);
+                }
+                if (busyHighlanders.contains(res.getJd().getId()))
+                {
+                    rejectedCauseHighlander++;
+                    continue;
+                }
+            }
+
+            // Enough CPU and memory left on the node?
+            if (!this.engine.getResources().tryReserve(res.getJd()))
+            {
+                rejectedCauseResources++;
                 continue;
             }
 
-            // Reserve the JI for this engine. Use a query rather than setter to avoid updating all fields (and locks when verifying FKs)
-            em.createQuery(
-                    "UPDATE JobInstance j SET j.state = 'ATTRIBUTED', j.node = :n, j.attributionDate = current_timestamp() WHERE id=:i")
-                    .setParameter("i", res.getId()).setParameter("n", this.engine.getNode()).executeUpdate();
+            // Reserve the JI for this engine and start it right away. Use a query rather than setter to avoid updating all fields (and
+            // locks when verifying FKs)
+            List<Integer> claimedIds = new ArrayList<Integer>();
+            claimedIds.add(res.getId());
+            try
+            {
+                em.createQuery(CLAIM_QUERY).setParameter("ids", claimedIds).setParameter("n", this.engine.getNode()).executeUpdate();
 
-            // Stop at the first suitable JI. Release the lock & update the JI which has been attributed to us.
-            em.getTransaction().commit();
+                // Stop at the first suitable JI. Release the lock & update the JI which has been attributed to us.
+                em.getTransaction().commit();
+            }
+            catch (RuntimeException e)
+            {
+                this.engine.getResources().release(res.getJd());
+                throw e;
+            }
+            prefetchParameters(em, claimedIds);
             return res;
         }
 
         // If here, no suitable JI is available
         em.getTransaction().rollback();
-        if (rejectedCauseHighlander > additionalSlots)
+        if (rejectedCauseHighlander > additionalSlots || (rejectedCauseResources > 0 && additionalSlots == 0))
         {
-            return dequeue(em, rejectedCauseHighlander);
+            return dequeue(em, rejectedCauseHighlander + rejectedCauseResources);
         }
         return null;
     }
 
     /**
+     * Set-based version of {@link #dequeue(EntityManager, int)}. All the free slots of the poller are claimed inside a single transaction,
+     * with a single lock query and a single UPDATE for the whole batch, instead of one lock/update/commit cycle per job instance.
+     * 
+     * @return the job instances that were attributed to this engine. Never null, may be empty.
+     */
+    protected List<JobInstance> dequeueBatch(EntityManager em, int additionalSlots)
+    {
+        List<JobInstance> res = new ArrayList<JobInstance>();
+
+        // Free room?
+        int freeSlots = maxNbThread - actualNbThread.get();
+        if (freeSlots <= 0)
+        {
+            return res;
+        }
+
+        // Get the list of candidate jobInstance within the defined queue, ordered by position
+        List<JobInstance> availableJobs = getCandidates(em, maxNbThread + additionalSlots);
+        if (availableJobs.isEmpty())
+        {
+            em.getTransaction().rollback();
+            return res;
+        }
+
+        // Lock all the candidates in one go. JI which have already been eaten by another engine (or have already ended) are simply not
+        // returned, so there is no need to retry in that case.
+        Set<Integer> lockedIds;
+        try
+        {
+            lockedIds = dequeueStrategy.lock(em, availableJobs);
+        }
+        catch (LockTimeoutException e)
+        {
+            // Just give up. We'll get another chance later.
+            em.getTransaction().rollback();
+            return res;
+        }
+
+        // Select the JI to run, respecting queue order.
+        int rejectedCauseHighlander = 0, rejectedCauseResources = 0;
+        Set<Integer> busyHighlanders = getBusyHighlanders(availableJobs, em);
+        Set<Integer> highlanderJdInBatch = new HashSet<Integer>();
+        List<Integer> claimedIds = new ArrayList<Integer>();
+        for (JobInstance ji : availableJobs)
+        {
+            if (res.size() >= freeSlots)
+            {
+                break;
+            }
+            if (!lockedIds.contains(ji.getId()))
+            {
+                // Already eaten by another engine
+                continue;
+            }
+
+            // Highlander? (both against what runs elsewhere and against what was just selected in this batch)
+            if (ji.getJd().isHighlander()
+                    && (highlanderJdInBatch.contains(ji.getJd().getId()) || busyHighlanders.contains(ji.getJd().getId())))
+            {
+                rejectedCauseHighlander++;
+                continue;
+            }
+
+            // Enough CPU and memory left on the node?
+            if (!this.engine.getResources().tryReserve(ji.getJd()))
+            {
+                rejectedCauseResources++;
+                continue;
+            }
+            if (ji.getJd().isHighlander())
+            {
+                highlanderJdInBatch.add(ji.getJd().getId());
+            }
+
+            res.add(ji);
+            claimedIds.add(ji.getId());
+        }
+
+        if (res.isEmpty())
+        {
+            // If here, no suitable JI is available
+            em.getTransaction().rollback();
+            if (rejectedCauseHighlander > additionalSlots || (rejectedCauseResources > 0 && additionalSlots == 0))
+            {
+                return dequeueBatch(em, rejectedCauseHighlander + rejectedCauseResources);
+            }
+            return res;
+        }
+
+        // Reserve and start all the selected JI in one go. Use a query rather than setters to avoid updating all fields.
+        try
+        {
+            em.createQuery(CLAIM_QUERY).setParameter("ids", claimedIds).setParameter("n", this.engine.getNode()).executeUpdate();
+            em.getTransaction().commit();
+        }
+        catch (RuntimeException e)
+        {
+            for (JobInstance ji : res)
+            {
+                this.engine.getResources().release(ji.getJd());
+            }
+            throw e;
+        }
+        prefetchParameters(em, claimedIds);
+        return res;
+    }
+
+    /**
+     * Reads the runtime parameters of the JI which have just been claimed, in a single query for all of them, so that their loaders do not
+     * have to. This is done outside the claim transaction: on databases with table locks, reading the parameters while holding locks on
+     * the JobInstance table would deadlock with concurrent enqueues.<br>
+     * As the JI are already claimed, a failure here must not prevent them from running: their loaders then read everything themselves.
+     */
+    private void prefetchParameters(EntityManager em, List<Integer> claimedIds)
+    {
+        for (Integer id : claimedIds)
+        {
+            this.claimedParameters.put(id, new HashMap<String, String>());
+        }
+        try
+        {
+            for (RuntimeParameter rp : em.createQuery("SELECT p FROM RuntimeParameter p WHERE p.ji IN (:ids)", RuntimeParameter.class)
+                    .setParameter("ids", claimedIds).getResultList())
+            {
+                this.claimedParameters.get(rp.getJi()).put(rp.getKey(), rp.getValue());
+            }
+        }
+        catch (RuntimeException e)
+        {
+            jqmlogger.warn("Could not read the parameters of the job instances just attributed - loaders will read them", e);
+            for (Integer id : claimedIds)
+            {
+                this.claimedParameters.remove(id);
+            }
+        }
+    }
+
+    /**
+     * The head of the queue, either in strict order or in fair share order if the queue has a fair share policy.
+     */
+    private List<JobInstance> getCandidates(EntityManager em, int max)
+    {
+        if (fairShare != null)
+        {
+            return fairShare.getCandidates(em, queue, max);
+        }
+        return dequeueStrategy.getCandidates(em, queue, max);
+    }
+
+    /**
+     * Highlander analysis for a whole list of candidates. Job definitions running on this node are known without any query thanks to the
+     * engine registry. All the others are checked against the rest of the cluster with a single query.
      * 
-     * @param jobToTest
+     * @param candidates
      * @param em
-     * @return true if job can be launched even if it is in highlander mode
+     * @return the IDs of the highlander job definitions of the candidates which already have an instance attributed or running, and
+     *         therefore cannot be launched.
      */
-    protected boolean highlanderPollingMode(JobInstance jobToTest, EntityManager em)
+    protected Set<Integer> getBusyHighlanders(List<JobInstance> candidates, EntityManager em)
     {
-        List<JobInstance> jobs = em.createQuery(
-                "SELECT j FROM JobInstance j WHERE j IS NOT :refid AND j.jd = :jd AND (j.state = 'RUNNING' OR j.state = 'ATTRIBUTED')",
-                JobInstance.class).setParameter("refid", jobToTest).setParameter("jd", jobToTest.getJd()).getResultList();
-        return jobs.isEmpty();
+        Set<Integer> res = new HashSet<Integer>();
+        Set<Integer> toCheck = new HashSet<Integer>();
+        for (JobInstance ji : candidates)
+        {
+            if (!ji.getJd().isHighlander())
+            {
+                continue;
+            }
+            if (this.engine.isHighlanderRunning(ji.getJd().getId()))
+            {
+                res.add(ji.getJd().getId());
+            }
+            else
+            {
+                toCheck.add(ji.getJd().getId());
+            }
+        }
+
+        if (!toCheck.isEmpty())
+        {
+            res.addAll(em.createQuery("SELECT DISTINCT j.jd.id FROM JobInstance j WHERE j.jd.id IN (:jds) "
+                    + "AND (j.state = 'RUNNING' OR j.state = 'ATTRIBUTED')", Integer.class).setParameter("jds", toCheck).getResultList());
+        }
+        return res;
     }
 
     @Override
@@ -233,35 +474,33 @@ class QueuePoller implements Runnable, QueuePollerMBean
         while (true)
         {
             lastLoop = Calendar.getInstance();
+            boolean hadFreeSlots = actualNbThread.get() < maxNbThread;
+            int launched = 0;
 
             try
             {
                 // Get a JI to run
                 em = Helpers.getNewEm();
-                JobInstance ji = dequeue(em, 0);
-                while (ji != null)
+                if (batchDequeue)
                 {
-                    // We will run this JI!
-                    jqmlogger.trace("JI number " + ji.getId() + " will be run by this poller this loop (already " + actualNbThread + "/"
-                            + maxNbThread + " on " + this.queue.getName() + ")");
-                    actualNbThread.incrementAndGet();
-                    if (ji.getJd().getMaxTimeRunning() != null)
-                    {
-                        this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJd().getMaxTimeRunning() * 60 * 1000));
-                    }
-
-                    // Run it
-                    if (!ji.getJd().isExternal())
+                    // Claim all free slots at once
+                    for (JobInstance ji : dequeueBatch(em, 0))
                     {
-                        (new Thread(new Loader(ji, this.engine, this, this.engine.getClassloaderManager()))).start();
+                        launch(ji, em);
+                        launched++;
                     }
-                    else
+                }
+                else
+                {
+                    JobInstance ji = dequeue(em, 0);
+                    while (ji != null)
                     {
-                        (new Thread(new LoaderExternal(em, ji, this))).start();
-                    }
+                        launch(ji, em);
+                        launched++;
 
-                    // Check if there is another job to run (does nothing - no db query - if queue is full so this is not expensive)
-                    ji = dequeue(em, 0);
+                        // Check if there is another job to run (does nothing - no db query - if queue is full so this is not expensive)
+                        ji = dequeue(em, 0);
+                    }
                 }
             }
             catch (RuntimeException e)
@@ -286,10 +525,14 @@ class QueuePoller implements Runnable, QueuePollerMBean
                 Helpers.closeQuietly(em);
             }
 
-            // Wait according to the deploymentParameter
+            // Wait according to the deploymentParameter (or less/more if adaptive)
+            if (adaptivePolling && hadFreeSlots)
+            {
+                adaptPollingInterval(launched > 0);
+            }
             try
             {
-                loop.tryAcquire(this.pollingInterval, TimeUnit.MILLISECONDS);
+                loop.tryAcquire(this.currentPollingInterval, TimeUnit.MILLISECONDS);
             }
             catch (InterruptedException e)
             {
@@ -339,23 +582,118 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
     }
 
+    /**
+     * Adaptive polling: the wait is halved after each loop which found work (the queue is likely to hold more) and doubled after each loop
+     * which found nothing, within the bounds given by the global parameters. Loops done while the poller is full do not change it, as they
+     * do not query the database.
+     */
+    private void adaptPollingInterval(boolean foundWork)
+    {
+        int next = foundWork ? currentPollingInterval / 2 : currentPollingInterval * 2;
+        next = Math.max(minPollingInterval, Math.min(maxPollingInterval, next));
+        if (next != currentPollingInterval)
+        {
+            jqmlogger.trace("Polling interval on queue " + this.queue.getName() + " is now " + next + "ms");
+            currentPollingInterval = next;
+        }
+    }
+
+    /**
+     * Starts the payload thread for a JI which has just been attributed to this poller.
+     */
+    private void launch(JobInstance ji, EntityManager em)
+    {
+        // We will run this JI!
+        jqmlogger.trace("JI number " + ji.getId() + " will be run by this poller this loop (already " + actualNbThread + "/" + maxNbThread
+                + " on " + this.queue.getName() + ")");
+        actualNbThread.incrementAndGet();
+        if (fairShare != null)
+        {
+            fairShare.launched(ji);
+        }
+        if (ResourceBudget.isWeighted(ji.getJd()))
+        {
+            this.reservations.put(ji.getId(), ji.getJd());
+        }
+        if (ji.getJd().isHighlander())
+        {
+            this.highlanders.put(ji.getId(), ji.getJd().getId());
+            this.engine.highlanderStarted(ji.getJd().getId());
+        }
+        if (ji.getJd().getMaxTimeRunning() != null)
+        {
+            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJd().getMaxTimeRunning() * 60 * 1000));
+        }
+
+        // The loader thread takes the JI as it is now in the database. Detach it first so that the poller session never writes it back.
+        Map<String, String> parameters = this.claimedParameters.remove(ji.getId());
+        em.detach(ji);
+        ji.setState(State.RUNNING);
+        ji.setNode(this.engine.getNode());
+        ji.setQueue(this.queue);
+        ji.setExecutionDate(this.engine.getDbClock().now()); // Close to the value set by the claim query - only used for monitoring.
+        this.running.put(ji.getId(), ji);
+
+        // Run it
+        if (!ji.getJd().isExternal())
+        {
+            this.engine.startLoader(new Loader(ji, parameters, this.engine, this, this.engine.getClassloaderManager()));
+        }
+        else
+        {
+            this.engine.startLoader(new LoaderExternal(em, ji, this));
+        }
+    }
+
     @Override
     public Integer getCurrentActiveThreadCount()
     {
         return actualNbThread.get();
     }
 
+    /**
+     * The job instances currently running inside this poller, as they were when launched. Does not access the database.
+     */
+    Collection<JobInstance> getRunningJobInstances()
+    {
+        return this.running.values();
+    }
+
     /**
      * Called when a payload thread has ended. This notifies the poller to free a slot and poll once again.
      */
     void decreaseNbThread(int jobId)
     {
+        this.running.remove(jobId);
         this.peremption.remove(jobId);
+        Integer highlanderJd = this.highlanders.remove(jobId);
+        if (highlanderJd != null)
+        {
+            this.engine.highlanderEnded(highlanderJd);
+        }
+        JobDef reserved = this.reservations.remove(jobId);
+        if (reserved != null)
+        {
+            this.engine.getResources().release(reserved);
+        }
         this.actualNbThread.decrementAndGet();
         loop.release(1);
         this.engine.signalEndOfRun();
     }
 
+    /**
+     * Called when a new job instance was created inside the polled queue. This notifies the poller to poll right now instead of waiting for
+     * the end of its polling interval.
+     */
+    void wakeUp()
+    {
+        // No need to accumulate permits: a single loop will see all the new job instances.
+        if (loop.availablePermits() == 0)
+        {
+            loop.release(1);
+        }
+    }
+
     boolean isRunning()
     {
         return !this.hasStopped;
@@ -422,9 +760,23 @@ class QueuePoller implements Runnable, QueuePollerMBean
 
     void setPollingInterval(int ms)
     {
+        if (this.pollingInterval != ms)
+        {
+            this.currentPollingInterval = ms;
+        }
         this.pollingInterval = ms;
     }
 
+    void setFairShareKey(FairShareKey shareKey)
+    {
+        FairSharePolicy current = this.fairShare;
+        if (shareKey != (current == null ? null : current.getShareKey()))
+        {
+            jqmlogger.info("Fair share on queue " + this.queue.getName() + " is now " + (shareKey == null ? "disabled" : "by " + shareKey));
+            this.fairShare = FairSharePolicy.create(shareKey, this.dequeueStrategy);
+        }
+    }
+
     // //////////////////////////////////////////////////////////
     // JMX
     // //////////////////////////////////////////////////////////
@@ -443,7 +795,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
     public float getJobsFinishedPerSecondLastMinute()
     {
         EntityManager em2 = Helpers.getNewEm();
-        Calendar minusOneMinute = Calendar.getInstance();
+        Calendar minusOneMinute = this.engine.getDbClock().now();
         minusOneMinute.add(Calendar.MINUTE, -1);
         Float nb = em2.createQuery("SELECT COUNT(i) From History i WHERE i.endDate >= :d and i.node = :n AND i.queue = :q", Long.class)
                 .setParameter("d", minusOneMinute).setParameter("n", this.engine.getNode()).setParameter("q", this.queue).getSingleResult()
@@ -464,6 +816,12 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return this.pollingInterval;
     }
 
+    @Override
+    public Integer getCurrentPollingIntervalMilliseconds()
+    {
+        return this.currentPollingInterval;
+    }
+
     @Override
     public Integer getMaxConcurrentJobInstanceCount()
     {
@@ -474,7 +832,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
     public boolean isActuallyPolling()
     {
         // 100ms is a rough estimate of the time taken to do the actual poll. If it's more, there is a huge issue elsewhere.
-        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= pollingInterval + 100;
+        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= currentPollingInterval + 100;
     }
 
     @Override
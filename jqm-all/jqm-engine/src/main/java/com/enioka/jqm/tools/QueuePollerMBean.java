@@ -31,10 +31,16 @@ public interface QueuePollerMBean
     void stop();
 
     /**
-     * Number of seconds between two database checks for new job instance to run.
+     * Number of milliseconds between two database checks for new job instance to run, as configured.
      */
     Integer getPollingIntervalMilliseconds();
 
+    /**
+     * Number of milliseconds the poller currently waits between two database checks. Equal to {@link #getPollingIntervalMilliseconds()}
+     * unless adaptive polling is enabled.
+     */
+    Integer getCurrentPollingIntervalMilliseconds();
+
     /**
      * Max number of simultaneously running job instances on this queue on this engine
      */
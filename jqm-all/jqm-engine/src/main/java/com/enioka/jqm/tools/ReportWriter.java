@@ -0,0 +1,346 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+import com.enioka.jqm.jpamodel.JobInstance;
+import com.enioka.jqm.jpamodel.Message;
+
+/**
+ * Write-behind buffer for the progress and messages sent by running job instances through the engine API, for a whole engine. Only the
+ * latest progress of each job instance is kept, and all buffered data is written every <code>flushIntervalMs</code> inside a single
+ * transaction, so that a payload reporting its progress for each item it processes does not lock its job instance row for each call. As
+ * clients then see the progress and messages of running job instances up to <code>flushIntervalMs</code> late, it is only used when
+ * enabled by the <code>reportFlushMs</code> global parameter.<br>
+ * At the end of a run, the loader takes what remains for its job instance (see {@link #take(int)}) and writes it along with the
+ * {@link com.enioka.jqm.jpamodel.History}, so ended job instances always have all their messages and their final progress.<br>
+ * Once the writer is stopped, data is no longer accepted and the caller should write it directly, as before. This is also the case while
+ * the latest flush has failed because the database is unreachable, so that payloads still get the database error (and fail) as they used
+ * to, instead of running blind while their reports pile up.
+ */
+class ReportWriter implements Runnable
+{
+    private static Logger jqmlogger = Logger.getLogger(ReportWriter.class);
+
+    /**
+     * What is waiting to be written for a job instance.
+     */
+    static class Report
+    {
+        Integer progress = null;
+        List<String> messages = new ArrayList<String>();
+    }
+
+    private final long flushIntervalMs;
+    private Map<Integer, Report> pending = new HashMap<Integer, Report>(); // Guarded by this
+    private final Object flushLock = new Object();
+    private boolean run = true;
+    private boolean dbFailure = false; // Guarded by this
+    private Thread localThread = null;
+
+    ReportWriter(long flushIntervalMs)
+    {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    void start()
+    {
+        localThread = new Thread(this, "REPORT_WRITER;;");
+        localThread.start();
+    }
+
+    /**
+     * @return false if the writer is stopped or the database unreachable, and the progress must be written by the caller.
+     */
+    synchronized boolean sendProgress(int jobInstanceId, int progress)
+    {
+        if (dbFailure)
+        {
+            // The caller's value is newer than the buffered one, which must not overwrite it later.
+            Report r = pending.get(jobInstanceId);
+            if (r != null)
+            {
+                r.progress = null;
+            }
+        }
+        if (!run || dbFailure)
+        {
+            return false;
+        }
+        getReport(jobInstanceId).progress = progress;
+        return true;
+    }
+
+    /**
+     * @return false if the writer is stopped or the database unreachable, and the message must be written by the caller.
+     */
+    synchronized boolean sendMsg(int jobInstanceId, String msg)
+    {
+        if (!run || dbFailure)
+        {
+            return false;
+        }
+        getReport(jobInstanceId).messages.add(msg);
+        return true;
+    }
+
+    private Report getReport(int jobInstanceId)
+    {
+        Report r = pending.get(jobInstanceId);
+        if (r == null)
+        {
+            r = new Report();
+            pending.put(jobInstanceId, r);
+        }
+        return r;
+    }
+
+    /**
+     * Removes from the buffer everything which was not yet written for the given job instance. If a flush is in progress, waits for its
+     * end first, so that nothing sent by the job instance can be written after the returned data. Must not be called while holding
+     * database locks, as the flush may need them.
+     * 
+     * @return the data to write, or null if there is nothing left.
+     */
+    Report take(int jobInstanceId)
+    {
+        synchronized (flushLock)
+        {
+            synchronized (this)
+            {
+                return pending.remove(jobInstanceId);
+            }
+        }
+    }
+
+    /**
+     * Writes the given data for a job instance inside the transaction of the given EntityManager.
+     */
+    static void write(Report r, JobInstance ji, EntityManager em)
+    {
+        if (r.progress != null)
+        {
+            ji.setProgress(r.progress);
+        }
+        for (String msg : r.messages)
+        {
+            Helpers.createMessage(msg, ji, em);
+        }
+    }
+
+    /**
+     * Stops the writer after a last flush. This method waits for the end of the writer thread.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            run = false;
+            this.notifyAll();
+        }
+        if (localThread != null)
+        {
+            try
+            {
+                localThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                jqmlogger.warn("Interrupted while waiting for the end of the report writer", e);
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        jqmlogger.info("Start of the report writer");
+        while (true)
+        {
+            boolean last;
+            synchronized (this)
+            {
+                if (run)
+                {
+                    try
+                    {
+                        this.wait(flushIntervalMs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Only stop() may end the writer.
+                    }
+                }
+                last = !run;
+            }
+            flush();
+            if (last)
+            {
+                break;
+            }
+        }
+        jqmlogger.info("End of the report writer");
+    }
+
+    private void flush()
+    {
+        synchronized (flushLock)
+        {
+            Map<Integer, Report> batch;
+            synchronized (this)
+            {
+                if (pending.isEmpty())
+                {
+                    // Nothing left to check the database with - the next flush will tell.
+                    dbFailure = false;
+                    return;
+                }
+                batch = pending;
+                pending = new HashMap<Integer, Report>();
+            }
+
+            EntityManager em = null;
+            try
+            {
+                em = Helpers.getNewEm();
+                em.getTransaction().begin();
+                for (Map.Entry<Integer, Report> e : batch.entrySet())
+                {
+                    write(e.getKey(), e.getValue(), em);
+                }
+                em.getTransaction().commit();
+                setDbFailure(false);
+            }
+            catch (RuntimeException e)
+            {
+                if (Helpers.testDbFailure(e))
+                {
+                    jqmlogger.warn("Could not write the progress and messages of running job instances - will retry", e);
+                    restore(batch);
+                    setDbFailure(true);
+                }
+                else
+                {
+                    jqmlogger.warn("Could not write the progress and messages of running job instances together - "
+                            + "writing them one job instance at a time", e);
+                    Helpers.closeQuietly(em);
+                    em = null;
+                    flushEach(batch);
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(em);
+            }
+        }
+    }
+
+    /**
+     * Writes each job instance of the batch inside its own transaction, so that data which cannot be written does not prevent the others
+     * from being written. Data which could not be written is kept for the next flush (or the end of the run of its job instance).
+     */
+    private void flushEach(Map<Integer, Report> batch)
+    {
+        Map<Integer, Report> failed = new HashMap<Integer, Report>();
+        boolean dbDown = false;
+        for (Map.Entry<Integer, Report> e : batch.entrySet())
+        {
+            if (dbDown)
+            {
+                failed.put(e.getKey(), e.getValue());
+                continue;
+            }
+
+            EntityManager em = null;
+            try
+            {
+                em = Helpers.getNewEm();
+                em.getTransaction().begin();
+                write(e.getKey(), e.getValue(), em);
+                em.getTransaction().commit();
+            }
+            catch (RuntimeException ex)
+            {
+                failed.put(e.getKey(), e.getValue());
+                if (Helpers.testDbFailure(ex))
+                {
+                    jqmlogger.warn("Could not write the progress and messages of running job instances - will retry", ex);
+                    dbDown = true;
+                }
+                else
+                {
+                    jqmlogger.error("Could not write the progress and messages of job instance " + e.getKey() + " - will retry", ex);
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(em);
+            }
+        }
+        restore(failed);
+        setDbFailure(dbDown);
+    }
+
+    private static void write(int jobInstanceId, Report r, EntityManager em)
+    {
+        if (r.progress != null)
+        {
+            em.createQuery("UPDATE JobInstance j SET j.progress = :p WHERE j.id = :i").setParameter("p", r.progress)
+                    .setParameter("i", jobInstanceId).executeUpdate();
+        }
+        for (String msg : r.messages)
+        {
+            Message m = new Message();
+            m.setTextMessage(msg);
+            m.setJi(jobInstanceId);
+            em.persist(m);
+        }
+    }
+
+    private synchronized void setDbFailure(boolean dbFailure)
+    {
+        this.dbFailure = dbFailure;
+    }
+
+    /**
+     * Puts back data which could not be written in front of what was sent since.
+     */
+    private synchronized void restore(Map<Integer, Report> batch)
+    {
+        for (Map.Entry<Integer, Report> e : batch.entrySet())
+        {
+            Report newer = pending.get(e.getKey());
+            if (newer == null)
+            {
+                pending.put(e.getKey(), e.getValue());
+                continue;
+            }
+            if (newer.progress == null)
+            {
+                newer.progress = e.getValue().progress;
+            }
+            newer.messages.addAll(0, e.getValue().messages);
+        }
+    }
+}
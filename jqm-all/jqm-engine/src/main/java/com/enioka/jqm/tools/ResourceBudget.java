@@ -0,0 +1,98 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import com.enioka.jqm.jpamodel.JobDef;
+import com.enioka.jqm.jpamodel.Node;
+
+/**
+ * The resource budget of an engine: the capacity given by {@link Node#getCpuUnits()} and {@link Node#getMemoryMb()}, and the sum of the
+ * weights ({@link JobDef#getCpuUnits()}, {@link JobDef#getMemoryMb()}) of the job instances attributed to or running on the engine. It is
+ * shared by all the pollers of the engine, which must reserve the weights of a job instance before claiming it.<br>
+ * A job instance heavier than the whole budget is still allowed to run when nothing else consumes resources, so that it is not stuck
+ * forever inside its queue.
+ */
+class ResourceBudget
+{
+    private Integer cpuCapacity = null, memoryCapacity = null;
+    private int cpuUsed = 0, memoryUsed = 0;
+
+    /**
+     * Null values mean no limit. Reservations already made are kept even if they exceed the new capacity.
+     */
+    synchronized void setCapacity(Integer cpuUnits, Integer memoryMb)
+    {
+        this.cpuCapacity = cpuUnits;
+        this.memoryCapacity = memoryMb;
+    }
+
+    /**
+     * True if the instances of this {@link JobDef} consume resources and must therefore be reserved and released.
+     */
+    static boolean isWeighted(JobDef jd)
+    {
+        return weight(jd.getCpuUnits()) > 0 || weight(jd.getMemoryMb()) > 0;
+    }
+
+    /**
+     * Reserves the weights of one instance of the given {@link JobDef} if they fit inside what remains of the budget.
+     * 
+     * @return true if reserved (or if there is nothing to reserve), false if the instance must not be started now.
+     */
+    synchronized boolean tryReserve(JobDef jd)
+    {
+        int cpu = weight(jd.getCpuUnits());
+        int memory = weight(jd.getMemoryMb());
+        if (cpu == 0 && memory == 0)
+        {
+            return true;
+        }
+
+        boolean idle = cpuUsed == 0 && memoryUsed == 0;
+        if (!idle
+                && ((cpuCapacity != null && cpuUsed + cpu > cpuCapacity) || (memoryCapacity != null && memoryUsed + memory > memoryCapacity)))
+        {
+            return false;
+        }
+        cpuUsed += cpu;
+        memoryUsed += memory;
+        return true;
+    }
+
+    /**
+     * Gives back what was taken by {@link #tryReserve(JobDef)}.
+     */
+    synchronized void release(JobDef jd)
+    {
+        cpuUsed = Math.max(0, cpuUsed - weight(jd.getCpuUnits()));
+        memoryUsed = Math.max(0, memoryUsed - weight(jd.getMemoryMb()));
+    }
+
+    synchronized int getCpuUsed()
+    {
+        return cpuUsed;
+    }
+
+    synchronized int getMemoryUsed()
+    {
+        return memoryUsed;
+    }
+
+    private static int weight(Integer w)
+    {
+        return w == null || w < 0 ? 0 : w;
+    }
+}
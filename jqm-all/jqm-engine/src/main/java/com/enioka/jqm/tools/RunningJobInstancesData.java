@@ -0,0 +1,95 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import com.enioka.jqm.jpamodel.JobInstance;
+
+/**
+ * JMX open data view of the job instances running on a node, with one row per job instance. It replaces the per job instance
+ * {@link LoaderMBean} (which is only registered when the <code>jmxJobInstanceBeans</code> parameter is set), so that monitoring tools do
+ * not have to discover a new MBean for each run.
+ */
+final class RunningJobInstancesData
+{
+    private static final String[] ITEMS = { "id", "applicationName", "queue", "user", "module", "keyword1", "keyword2", "keyword3",
+            "sessionId", "enqueueDate", "runTimeSeconds" };
+    private static final String[] DESCRIPTIONS = { "The unique ID of the launch", "The name of the job definition", "The queue polled",
+            "An optional tag that can be defined at enqueue time", "An optional tag that can be defined at enqueue time",
+            "An optional tag that can be defined at enqueue time", "An optional tag that can be defined at enqueue time",
+            "An optional tag that can be defined at enqueue time", "An optional tag that can be defined at enqueue time",
+            "Time the request was made", "Number of seconds the job instance has been running" };
+    private static final OpenType<?>[] TYPES = { SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING,
+            SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.DATE, SimpleType.LONG };
+
+    private static final CompositeType ROW_TYPE;
+    private static final TabularType TABLE_TYPE;
+
+    static
+    {
+        try
+        {
+            ROW_TYPE = new CompositeType("RunningJobInstance", "A job instance running on the node", ITEMS, DESCRIPTIONS, TYPES);
+            TABLE_TYPE = new TabularType("RunningJobInstances", "The job instances running on the node", ROW_TYPE, new String[] { "id" });
+        }
+        catch (OpenDataException e)
+        {
+            throw new JqmInitError("Could not create JMX types for running job instances", e);
+        }
+    }
+
+    private RunningJobInstancesData()
+    {
+        // Helper class only.
+    }
+
+    static TabularData create(Collection<QueuePoller> pollers, Calendar now)
+    {
+        TabularDataSupport res = new TabularDataSupport(TABLE_TYPE);
+        for (QueuePoller p : pollers)
+        {
+            for (JobInstance ji : p.getRunningJobInstances())
+            {
+                Date enqueueDate = ji.getCreationDate() == null ? null : ji.getCreationDate().getTime();
+                Long runTime = ji.getExecutionDate() == null ? null
+                        : (now.getTimeInMillis() - ji.getExecutionDate().getTimeInMillis()) / 1000;
+                Object[] values = { ji.getId(), ji.getJd().getApplicationName(), p.getQueue().getName(), ji.getUserName(),
+                        ji.getModule(), ji.getKeyword1(), ji.getKeyword2(), ji.getKeyword3(), ji.getSessionID(), enqueueDate, runTime };
+                try
+                {
+                    res.put(new CompositeDataSupport(ROW_TYPE, ITEMS, values));
+                }
+                catch (OpenDataException e)
+                {
+                    throw new JqmRuntimeException("Could not create JMX data for job instance " + ji.getId(), e);
+                }
+            }
+        }
+        return res;
+    }
+}
@@ -130,6 +130,10 @@ class XmlJobDefExporter
         if (j.getMaxTimeRunning() != null)
             addTextElementToParentElement(jobDefinition, "reasonableRuntimeLimitMinute", j.getMaxTimeRunning()+"");
         addTextElementToParentElement(jobDefinition, "highlander", j.isHighlander() ? "true": "false");
+        if (j.getCpuUnits() != null)
+            addTextElementToParentElement(jobDefinition, "cpuUnits", j.getCpuUnits()+"");
+        if (j.getMemoryMb() != null)
+            addTextElementToParentElement(jobDefinition, "memoryMb", j.getMemoryMb()+"");
 
         List<JobDefParameter> jobDefParameters = j.getParameters();
         if (jobDefParameters != null && !jobDefParameters.isEmpty()) {
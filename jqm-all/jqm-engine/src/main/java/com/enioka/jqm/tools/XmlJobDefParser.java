@@ -218,6 +218,16 @@ class XmlJobDefParser
                                 Integer.parseInt(jdElement.getElementsByTagName("reasonableRuntimeLimitMinute").item(0).getTextContent()));
                     }
 
+                    // Resource weights
+                    if (jdElement.getElementsByTagName("cpuUnits").getLength() > 0)
+                    {
+                        jd.setCpuUnits(Integer.parseInt(jdElement.getElementsByTagName("cpuUnits").item(0).getTextContent()));
+                    }
+                    if (jdElement.getElementsByTagName("memoryMb").getLength() > 0)
+                    {
+                        jd.setMemoryMb(Integer.parseInt(jdElement.getElementsByTagName("memoryMb").item(0).getTextContent()));
+                    }
+
                     // Parameters
                     for (JobDefParameter jdp : jd.getParameters())
                     {
@@ -21,6 +21,7 @@ package com.enioka.jqm.tools;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 
 import javax.persistence.TypedQuery;
@@ -36,6 +37,7 @@ import com.enioka.jqm.jpamodel.History;
 import com.enioka.jqm.jpamodel.JobDef;
 import com.enioka.jqm.jpamodel.JobInstance;
 import com.enioka.jqm.jpamodel.Message;
+import com.enioka.jqm.jpamodel.Queue;
 import com.enioka.jqm.jpamodel.State;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
@@ -300,4 +302,58 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals(null, h.getKeyword2());
         Assert.assertEquals("keyword3", h.getKeyword3());
     }
+
+    @Test
+    public void testPriority() throws Exception
+    {
+        Queue q = CreationTools.initQueue("q", "", 42, em);
+        CreationTools.createDeploymentParameter(TestHelpers.node, 1, 100, q, em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", q, 42, "MarsuApplication",
+                null, "Franquin", "ModuleMachin", "other", "other", false, em);
+
+        int i1 = JobRequest.create("MarsuApplication", "TestUser").submit();
+        int i2 = JobRequest.create("MarsuApplication", "TestUser").submit();
+        int i3 = JobRequest.create("MarsuApplication", "TestUser").setPriority(5).submit();
+        int i4 = JobRequest.create("MarsuApplication", "TestUser").setPriority(-1).submit();
+        JqmClientFactory.getClient().setJobPriority(i2, 10);
+        Assert.assertEquals(10, (int) JqmClientFactory.getClient().getJob(i2).getPriority());
+
+        addAndStartEngine();
+        TestHelpers.waitFor(4, 10000, em);
+        Assert.assertEquals(4, TestHelpers.getOkCount(em));
+
+        List<History> res = em.createQuery("SELECT j FROM History j ORDER BY j.executionDate ASC", History.class).getResultList();
+        Assert.assertEquals(i2, (int) res.get(0).getId());
+        Assert.assertEquals(i3, (int) res.get(1).getId());
+        Assert.assertEquals(i1, (int) res.get(2).getId());
+        Assert.assertEquals(i4, (int) res.get(3).getId());
+        Assert.assertEquals(10, (int) res.get(0).getPriority());
+    }
+
+    @Test
+    public void testPriorityAging() throws Exception
+    {
+        CreationTools.createGlobalParameter("priorityAgingMinutes", "1", em);
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", em);
+        Queue q = CreationTools.initQueue("q", "", 42, em); // Not polled by any engine.
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", q, 42, "MarsuApplication",
+                null, "Franquin", "ModuleMachin", "other", "other", false, em);
+
+        int old = JobRequest.create("MarsuApplication", "TestUser").submit();
+        int recent = JobRequest.create("MarsuApplication", "TestUser").submit();
+        Calendar past = Calendar.getInstance();
+        past.add(Calendar.MINUTE, -2);
+        em.getTransaction().begin();
+        em.createQuery("UPDATE JobInstance j SET j.creationDate = :d WHERE j.id = :i").setParameter("d", past).setParameter("i", old)
+                .executeUpdate();
+        em.getTransaction().commit();
+
+        // Two engines, so as to check aging does not go faster with more nodes.
+        addAndStartEngine();
+        addAndStartEngine("localhost4");
+        sleep(2);
+
+        Assert.assertEquals(1, (int) JqmClientFactory.getClient().getJob(old).getPriority());
+        Assert.assertEquals(0, (int) JqmClientFactory.getClient().getJob(recent).getPriority());
+    }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.jpamodel.FairShareKey;
+import com.enioka.jqm.jpamodel.History;
+import com.enioka.jqm.jpamodel.JobDef;
+import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+public class DequeueTest extends JqmBaseTest
+{
+    @Test
+    public void testFairShare() throws Exception
+    {
+        // A single slot, a big backlog for one user and a small one for another: the second user must not wait for the whole backlog.
+        Queue q = CreationTools.initQueue("fair", "", 42, em);
+        em.getTransaction().begin();
+        em.find(Queue.class, q.getId()).setFairShareKey(FairShareKey.USER);
+        em.getTransaction().commit();
+        CreationTools.createDeploymentParameter(TestHelpers.node, 1, 100, q, em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", q, 42, "jqm-test-fair",
+                null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        for (int i = 0; i < 10; i++)
+        {
+            JobRequest.create("jqm-test-fair", "big").submit();
+        }
+        JobRequest.create("jqm-test-fair", "small").submit();
+        JobRequest.create("jqm-test-fair", "small").submit();
+        addAndStartEngine();
+
+        TestHelpers.waitFor(12, 30000, em);
+        Assert.assertEquals(12, TestHelpers.getOkCount(em));
+
+        List<History> res = em.createQuery("SELECT h FROM History h ORDER BY h.executionDate ASC", History.class).getResultList();
+        int small = 0;
+        for (History h : res.subList(0, 4))
+        {
+            if ("small".equals(h.getUserName()))
+            {
+                small++;
+            }
+        }
+        Assert.assertEquals(2, small);
+    }
+
+    @Test
+    public void testResourceBudget() throws Exception
+    {
+        // Budget of 4 CPU units: heavy instances (3 units) must run one at a time, whatever the queue width. A light one (1 unit) fits
+        // next to a heavy one.
+        JobDef heavy = CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar",
+                TestHelpers.qVip, 42, "jqm-test-heavy", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        JobDef light = CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar",
+                TestHelpers.qVip, 42, "jqm-test-light", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        em.getTransaction().begin();
+        em.find(com.enioka.jqm.jpamodel.Node.class, TestHelpers.node.getId()).setCpuUnits(4);
+        em.find(JobDef.class, heavy.getId()).setCpuUnits(3);
+        em.find(JobDef.class, light.getId()).setCpuUnits(1);
+        em.getTransaction().commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-heavy", "TestUser").addParameter("p1", "1000").submit();
+        }
+        JobRequest.create("jqm-test-light", "TestUser").addParameter("p1", "1000").submit();
+        addAndStartEngine();
+
+        TestHelpers.waitFor(4, 20000, em);
+        Assert.assertEquals(4, TestHelpers.getOkCount(em));
+
+        List<History> res = em
+                .createQuery("SELECT h FROM History h WHERE h.applicationName = :a ORDER BY h.executionDate ASC", History.class)
+                .setParameter("a", "jqm-test-heavy").getResultList();
+        Calendar prevEnd = null;
+        for (History h : res)
+        {
+            if (prevEnd != null && h.getExecutionDate().before(prevEnd))
+            {
+                Assert.fail("heavy executions were not exclusive");
+            }
+            prevEnd = h.getEndDate();
+        }
+        History l = em.createQuery("SELECT h FROM History h WHERE h.applicationName = :a", History.class)
+                .setParameter("a", "jqm-test-light").getSingleResult();
+        Assert.assertTrue(l.getExecutionDate().before(res.get(0).getEndDate()));
+    }
+}
@@ -21,8 +21,11 @@ import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.jpamodel.History;
 import com.enioka.jqm.jpamodel.Message;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class EngineApiTest extends JqmBaseTest
 {
@@ -98,4 +101,52 @@ public class EngineApiTest extends JqmBaseTest
     {
         JqmSimpleTest.create(em, "pyl.EngineApiGetStatus").expectNonOk(1).expectOk(2).run(this);
     }
+
+    @Test
+    public void testReportWriteBehind() throws Exception
+    {
+        // Nothing is flushed during the runs: progress and messages must be stored at the end of the run, with the History.
+        CreationTools.createGlobalParameter("reportFlushMs", "600000", em);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiProgress", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-progress", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSend3Msg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                42, "jqm-test-msg", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        int i1 = JobRequest.create("jqm-test-progress", "TestUser").submit();
+        int i2 = JobRequest.create("jqm-test-msg", "TestUser").submit();
+        addAndStartEngine();
+
+        TestHelpers.waitFor(2, 20000, em);
+        Assert.assertEquals(2, TestHelpers.getOkCount(em));
+        Assert.assertEquals((Integer) 50, em.find(History.class, i1).getProgress());
+        Assert.assertEquals(3L, (long) em.createQuery("SELECT COUNT(m) FROM Message m WHERE m.ji = :i", Long.class).setParameter("i", i2)
+                .getSingleResult());
+    }
+
+    @Test
+    public void testCompletionBus() throws Exception
+    {
+        CompletionBus.Waiter child = CompletionBus.waitForJobInstance(100000);
+        CompletionBus.Waiter children = CompletionBus.waitForChildren(100001);
+        try
+        {
+            CompletionBus.jobInstanceEnded(100002, null);
+            Assert.assertFalse(child.await(10));
+            Assert.assertFalse(children.await(10));
+
+            CompletionBus.jobInstanceEnded(100000, 100001);
+            Assert.assertTrue(child.await(10));
+            Assert.assertTrue(children.await(10));
+            Assert.assertFalse(child.await(10)); // Notifications are consumed.
+
+            // Cross-JVM notification format
+            CompletionBus.jobInstancesEnded("100003/100001;100000/;");
+            Assert.assertTrue(child.await(10));
+            Assert.assertTrue(children.await(10));
+        }
+        finally
+        {
+            child.close();
+            children.close();
+        }
+    }
 }
@@ -74,6 +74,50 @@ public class EngineCLIsolationTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
     }
 
+    /**
+     * Run test with a pool of isolated class loaders.
+     * 
+     * Expected : isolation between job definitions, and the next launch of a job definition reuses its class loader
+     */
+    @Test
+    public void testIsolatedPool() throws Exception
+    {
+        CreationTools.createGlobalParameter("isolatedPoolSize", "2", em);
+        addAndStartEngine();
+
+        createSubmitSetJob(null);
+        TestHelpers.waitFor(1, 10000, em);
+        createSubmitGetJob(null);
+        TestHelpers.waitFor(2, 10000, em);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+        Assert.assertEquals(2, engines.get("localhost").getClassloaderManager().getIdleIsolatedCount());
+
+        JobRequest.create("TestSet", null).submit();
+        TestHelpers.waitFor(3, 10000, em);
+        Assert.assertEquals(3, TestHelpers.getOkCount(em));
+        Assert.assertEquals(2, engines.get("localhost").getClassloaderManager().getIdleIsolatedCount());
+    }
+
+    @Test
+    public void testIsolatedPoolVirtualThreads() throws Exception
+    {
+        // Threads left by payloads cannot be checked when they may be virtual: no pool.
+        CreationTools.createGlobalParameter("isolatedPoolSize", "2", em);
+        CreationTools.createGlobalParameter("loaderVirtualThreads", "true", em);
+        addAndStartEngine();
+
+        createSubmitSetJob(null);
+        TestHelpers.waitFor(1, 10000, em);
+        createSubmitGetJob(null);
+        TestHelpers.waitFor(2, 10000, em);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+        Assert.assertEquals(0, engines.get("localhost").getClassloaderManager().getIdleIsolatedCount());
+    }
+
     /**
      * Run test setting global parameter launch_isolation_default to SharedJar with two jobs inside the same jar.
      * 
@@ -1,8 +1,10 @@
 package com.enioka.jqm.tools;
 
 
+import java.io.File;
 import java.util.ArrayList;
 
+import org.apache.commons.io.FilenameUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -51,4 +53,34 @@ public class EngineChildFirstCLTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getOkCount(em));
         Assert.assertEquals(1, TestHelpers.getNonOkCount(em));
     }
+
+    @Test
+    public void testJarClassLoaderIndex() throws Exception
+    {
+        File jar = new File(FilenameUtils.concat(new File(TestHelpers.node.getRepo()).getAbsolutePath(),
+                "jqm-tests/jqm-test-pyl-nodep/target/test.jar"));
+        JarClassLoader cl = new JarClassLoader(ClassLoader.getSystemClassLoader().getParent());
+        cl.extendUrls(jar.toURI().toURL(), null);
+
+        Assert.assertEquals(cl, cl.loadClass("pyl.Nothing").getClassLoader());
+        Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+        for (int i = 0; i < 2; i++)
+        {
+            // Second time is answered by the negative caches.
+            try
+            {
+                cl.loadClass("pyl.DoesNotExist");
+                Assert.fail("class should not have been found");
+            }
+            catch (ClassNotFoundException e)
+            {
+                // Expected
+            }
+        }
+
+        cl.setChildFirstClassLoader(true);
+        Assert.assertEquals(cl, cl.loadClass("pyl.Wait").getClassLoader());
+        Assert.assertEquals(String.class, cl.loadClass("java.lang.String"));
+        Assert.assertEquals(cl.loadClass("pyl.Nothing"), cl.loadClass("pyl.Nothing"));
+    }
 }
@@ -1,7 +1,9 @@
 package com.enioka.jqm.tools;
 
+import java.io.File;
 import java.util.ArrayList;
 
+import org.apache.commons.io.FilenameUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -51,4 +53,46 @@ public class EngineHiddenJavaClassesTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
     }
     
+
+    @Test
+    public void testJarClassLoaderHiddenClasses() throws Exception
+    {
+        File jar = new File(FilenameUtils.concat(new File(TestHelpers.node.getRepo()).getAbsolutePath(),
+                "jqm-tests/jqm-test-pyl-nodep/target/test.jar"));
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        JarClassLoader cl = new JarClassLoader(parent);
+        cl.extendUrls(jar.toURI().toURL(), null);
+
+        // Setting the parameter again must replace the rules, not add to them.
+        cl.setHiddenJavaClasses("com\\.marsu\\..*");
+        cl.setHiddenJavaClasses("com\\.marsu\\..*,pyl\\.Noth.*");
+        Assert.assertEquals(2, cl.getHiddenJavaClassesMatcher().getLiteralRuleCount());
+        Assert.assertEquals(0, cl.getHiddenJavaClassesMatcher().getRegexRuleCount());
+
+        // Both pyl classes are visible to the parent, but only the non hidden one is taken from it.
+        Class<?> hidden = cl.loadClass("pyl.Nothing");
+        Assert.assertEquals(cl, hidden.getClassLoader());
+        Assert.assertEquals(hidden, cl.loadClass("pyl.Nothing"));
+        Assert.assertEquals(parent.loadClass("pyl.Wait"), cl.loadClass("pyl.Wait"));
+        Assert.assertEquals(parent.loadClass("pyl.Wait"), cl.loadClass("pyl.Wait"));
+
+        cl.setHiddenJavaClasses(null);
+        Assert.assertNull(cl.getHiddenJavaClassesMatcher());
+        Assert.assertFalse(cl.isHidden("pyl.Nothing"));
+
+        // Literal rules (prefixes and exact names) and regex rules, including rules with back references, behave as plain regexes.
+        cl.setHiddenJavaClasses("^java\\.foo\\..*,com\\.marsu\\.Houba$,(a)\\.\\1,org\\.[a-z]+\\.Meuh");
+        Assert.assertEquals(2, cl.getHiddenJavaClassesMatcher().getLiteralRuleCount());
+        Assert.assertEquals(2, cl.getHiddenJavaClassesMatcher().getRegexRuleCount());
+        Assert.assertTrue(cl.isHidden("java.foo.Bar"));
+        Assert.assertTrue(cl.isHidden("java.foo."));
+        Assert.assertFalse(cl.isHidden("java.foobar.Bar"));
+        Assert.assertTrue(cl.isHidden("com.marsu.Houba"));
+        Assert.assertFalse(cl.isHidden("com.marsu.Houba2"));
+        Assert.assertFalse(cl.isHidden("com.marsu"));
+        Assert.assertTrue(cl.isHidden("a.a"));
+        Assert.assertFalse(cl.isHidden("a.b"));
+        Assert.assertTrue(cl.isHidden("org.marsu.Meuh"));
+        Assert.assertFalse(cl.isHidden("org.Marsu.Meuh"));
+    }
 }
@@ -0,0 +1,73 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.jpamodel.History;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+public class FinalizationTest extends JqmBaseTest
+{
+    @Test
+    public void testFinalizationBatch() throws Exception
+    {
+        // A long window so that job instances ending together are stored inside the same transaction. Results must be complete anyway.
+        CreationTools.createGlobalParameter("finalizationBatchMs", "200", em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-finalization", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        for (int i = 0; i < 30; i++)
+        {
+            JobRequest.create("jqm-test-finalization", "TestUser").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(30, 20000, em);
+        Assert.assertEquals(30, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+        Assert.assertEquals(0L, (long) em.createQuery("SELECT COUNT(j) FROM JobInstance j", Long.class).getSingleResult());
+        for (History h : em.createQuery("SELECT h FROM History h", History.class).getResultList())
+        {
+            Assert.assertNotNull(h.getEndDate());
+            Assert.assertFalse(h.getEndDate().before(h.getExecutionDate()));
+        }
+        Assert.assertTrue(engines.get("localhost").getFinalizationWriter().getLargestBatchSize() > 1);
+    }
+
+    @Test
+    public void testHousekeepingBackPressure() throws Exception
+    {
+        // A single housekeeping thread with almost no queue: many payload threads must do their own housekeeping. Nothing must be lost.
+        CreationTools.createGlobalParameter("housekeepingThreads", "1", em);
+        CreationTools.createGlobalParameter("housekeepingQueueSize", "1", em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-housekeeping", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        for (int i = 0; i < 30; i++)
+        {
+            JobRequest.create("jqm-test-housekeeping", "TestUser").submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(30, 20000, em);
+        Assert.assertEquals(30, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+        Assert.assertEquals(0L, (long) em.createQuery("SELECT COUNT(j) FROM JobInstance j", Long.class).getSingleResult());
+        Assert.assertTrue(engines.get("localhost").getHousekeepingCallerRunsCount() > 0);
+    }
+}
@@ -40,6 +40,11 @@ public class HighlanderTest extends JqmBaseTest
 {
     @Test
     public void testHighlanderMultiNode() throws Exception
+    {
+        highlanderMultiNode();
+    }
+
+    private void highlanderMultiNode() throws Exception
     {
         CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42, "MarsuApplication", null, "Franquin",
                 "ModuleMachin", "other", "other", true, em);
@@ -66,6 +71,15 @@ public class HighlanderTest extends JqmBaseTest
         Assert.assertEquals(State.ENDED, res.get(1).getState());
         Assert.assertEquals(true, res.get(0).isHighlander());
 
+        assertExclusive(res);
+        System.out.println("there were n histories: " + res.size());
+    }
+
+    /**
+     * Fails if the given History rows, in submission order, have overlapping executions.
+     */
+    private static void assertExclusive(List<History> res)
+    {
         Calendar prevEnd = null;
         for (History h : res)
         {
@@ -75,7 +89,47 @@ public class HighlanderTest extends JqmBaseTest
             }
             prevEnd = h.getEndDate();
         }
-        System.out.println("there were n histories: " + res.size());
+    }
+
+    @Test
+    public void testHighlanderSeveralJobDefs() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42, "MarsuApplication", null, "Franquin",
+                "ModuleMachin", "other", "other", true, em);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42, "MarsuApplication2", null, "Franquin",
+                "ModuleMachin", "other", "other", true, em);
+
+        addAndStartEngine();
+        addAndStartEngine("localhost4");
+
+        JobRequest j1 = new JobRequest("MarsuApplication", "TestUser");
+        JobRequest j2 = new JobRequest("MarsuApplication2", "TestUser");
+        for (int i = 0; i < 50; i++)
+        {
+            JqmClientFactory.getClient().enqueue(j1);
+            JqmClientFactory.getClient().enqueue(j2);
+        }
+        TestHelpers.waitFor(200, 5000, em); // Actually wait.
+
+        for (String app : new String[] { "MarsuApplication", "MarsuApplication2" })
+        {
+            List<History> res = em.createQuery("SELECT j FROM History j WHERE j.applicationName = :a ORDER BY j.id ASC", History.class)
+                    .setParameter("a", app).getResultList();
+            Assert.assertTrue(res.size() > 0);
+
+            for (History h : res)
+            {
+                Assert.assertEquals(State.ENDED, h.getState());
+            }
+            assertExclusive(res);
+        }
+    }
+
+    @Test
+    public void testHighlanderMultiNodeBatchDequeue() throws Exception
+    {
+        CreationTools.createGlobalParameter("pollerBatchDequeue", "true", em);
+        highlanderMultiNode();
     }
 
     @Test
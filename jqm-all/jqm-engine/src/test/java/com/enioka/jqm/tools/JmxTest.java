@@ -23,6 +23,8 @@ import javax.management.JMX;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -41,6 +43,7 @@ public class JmxTest extends JqmBaseTest
     {
         CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
                 "KillApp", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        CreationTools.createGlobalParameter("jmxJobInstanceBeans", "true", em);
         int i = JobRequest.create("KillApp", "TestUser").submit();
 
         // Get free ports
@@ -103,14 +106,25 @@ public class JmxTest extends JqmBaseTest
         proxy.getRunTimeSeconds(); // Twice for all code paths.
         proxy.getSessionId();
 
+        // Same job instance inside the engine aggregated view
+        ObjectName engine = new ObjectName("com.enioka.jqm:type=Node,name=" + TestHelpers.node.getName());
+        JqmEngineMBean proxyEngine = JMX.newMBeanProxy(mbsc, engine, JqmEngineMBean.class);
+        TabularData running = proxyEngine.getRunningJobInstances();
+        Assert.assertEquals(1, running.size());
+        CompositeData row = running.get(new Object[] { i });
+        Assert.assertNotNull(row);
+        Assert.assertEquals("KillApp", row.get("applicationName"));
+        Assert.assertEquals(TestHelpers.qVip.getName(), row.get("queue"));
+        Assert.assertEquals("TestUser", row.get("user"));
+        Assert.assertTrue((Long) row.get("runTimeSeconds") >= 0);
+
         // Kill it though JMX
         proxy.kill();
         Thread.sleep(4000);
 
         // //////////////////
         // Engine bean
-        ObjectName engine = new ObjectName("com.enioka.jqm:type=Node,name=" + TestHelpers.node.getName());
-        JqmEngineMBean proxyEngine = JMX.newMBeanProxy(mbsc, engine, JqmEngineMBean.class);
+        Assert.assertEquals(0, proxyEngine.getRunningJobInstances().size());
         Assert.assertEquals(1, proxyEngine.getCumulativeJobInstancesCount() + proxyEngine.getCurrentlyRunningJobCount());
         Assert.assertTrue(proxyEngine.getUptime() > 0);
         proxyEngine.getVersion();
@@ -127,6 +141,7 @@ public class JmxTest extends JqmBaseTest
         proxyPoller.getJobsFinishedPerSecondLastMinute();
         Assert.assertEquals((Integer) 40, proxyPoller.getMaxConcurrentJobInstanceCount());
         Assert.assertEquals((Integer) 1, proxyPoller.getPollingIntervalMilliseconds());
+        Assert.assertEquals((Integer) 1, proxyPoller.getCurrentPollingIntervalMilliseconds());
 
         Assert.assertTrue(proxyPoller.isActuallyPolling());
         Assert.assertTrue(!proxyPoller.isFull());
@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+public class LoaderThreadTest extends JqmBaseTest
+{
+    @Test
+    public void testLoaderThreadPool() throws Exception
+    {
+        // Less threads than job instances: threads must be reused, and some job instances must wait for a thread.
+        CreationTools.createGlobalParameter("loaderThreadPool", "true", em);
+        CreationTools.createGlobalParameter("loaderThreadPoolMin", "1", em);
+        CreationTools.createGlobalParameter("loaderThreadPoolMax", "2", em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-pool", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        for (int i = 0; i < 10; i++)
+        {
+            JobRequest.create("jqm-test-pool", null).submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(10, 30000, em);
+        Assert.assertEquals(10, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+
+        // Ten runs on at most two threads.
+        sleep(1); // the loader threads end their task a little after the History is written
+        LoaderExecutor pool = engines.get("localhost").getLoaderExecutor();
+        Assert.assertNotNull(pool);
+        Assert.assertTrue(pool.getLargestPoolSize() >= 1);
+        Assert.assertTrue(pool.getLargestPoolSize() <= 2);
+        Assert.assertEquals(10, pool.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testLoaderVirtualThreads() throws Exception
+    {
+        // Virtual threads if the test JVM has them, platform threads otherwise (here from the pool, also requested). Either way, the
+        // per-thread logs and the engine API must work.
+        CreationTools.createGlobalParameter("loaderVirtualThreads", "true", em);
+        CreationTools.createGlobalParameter("loaderThreadPool", "true", em);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-virtual", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        for (int i = 0; i < 5; i++)
+        {
+            JobRequest.create("jqm-test-virtual", null).submit();
+        }
+        addAndStartEngine();
+
+        TestHelpers.waitFor(5, 20000, em);
+        Assert.assertEquals(5, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+        Assert.assertEquals(5, em.createQuery("SELECT m FROM Message m", com.enioka.jqm.jpamodel.Message.class).getResultList().size());
+
+        boolean supported = true;
+        try
+        {
+            Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            supported = false;
+        }
+        JqmEngine engine = engines.get("localhost");
+        Assert.assertEquals(supported, engine.isUsingVirtualThreads());
+        Assert.assertEquals(supported, engine.getLoaderExecutor() == null);
+        if (!supported)
+        {
+            sleep(1); // the loader threads end their task a little after the History is written
+            Assert.assertEquals(5, engine.getLoaderExecutor().getCompletedTaskCount());
+        }
+    }
+}
@@ -53,6 +53,11 @@ public class MultiNodeTest extends JqmBaseTest
 
     @Test
     public void testOneQueueTwoNodes() throws Exception
+    {
+        oneQueueTwoNodes();
+    }
+
+    private void oneQueueTwoNodes() throws Exception
     {
         CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
                 "AppliNode1-1", null, "Franquin", "ModuleMachin", "other", "other", false, em);
@@ -90,6 +95,20 @@ public class MultiNodeTest extends JqmBaseTest
                 em.createQuery("SELECT count(j) FROM History j WHERE j.node.name='localhost4'", Long.class).getSingleResult() > 0L);
     }
 
+    @Test
+    public void testDequeueStrategyHsqldb() throws Exception
+    {
+        // HSQLDB has no SKIP LOCKED - the historical algorithm must be used.
+        Assert.assertTrue(DequeueStrategy.create(em) instanceof DequeueStrategyLockAfterRead);
+    }
+
+    @Test
+    public void testOneQueueTwoNodesBatchDequeue() throws Exception
+    {
+        CreationTools.createGlobalParameter("pollerBatchDequeue", "true", em);
+        oneQueueTwoNodes();
+    }
+
     @Test
     public void testOneQueueThreeNodes() throws Exception
     {
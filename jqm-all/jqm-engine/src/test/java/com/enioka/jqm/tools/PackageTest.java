@@ -16,10 +16,14 @@
 package com.enioka.jqm.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
 
 import javax.persistence.EntityManager;
 
+import org.apache.commons.io.FilenameUtils;
 import org.jboss.shrinkwrap.resolver.api.NoResolvedResultException;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenRemoteRepositories;
@@ -30,6 +34,7 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.jpamodel.JobDef;
+import com.enioka.jqm.jpamodel.JobDef.PathType;
 import com.enioka.jqm.jpamodel.JobDefParameter;
 import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
@@ -78,6 +83,66 @@ public class PackageTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
     }
 
+    @Test
+    public void testLibInJarSharedStore() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-datetimemavenjarinlib/target/test.jar", TestHelpers.qVip,
+                42, "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-datetimemavenjarinlib/target/test.jar", TestHelpers.qVip,
+                42, "MarsuApplication2", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        JobRequest.create("MarsuApplication", "TestUser").submit();
+        JobRequest.create("MarsuApplication2", "TestUser").submit();
+
+        addAndStartEngine();
+        TestHelpers.waitFor(2, 10000, em);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+
+        // Both job definitions use the same libraries, which are stored once, and nothing is extracted next to the jar.
+        Properties references = new Properties();
+        File storeDir = LibraryStore.getDirectory(TestHelpers.node);
+        FileInputStream is = new FileInputStream(new File(storeDir, "references.properties"));
+        references.load(is);
+        is.close();
+        Assert.assertNotNull(references.getProperty("MarsuApplication"));
+        Assert.assertFalse(references.getProperty("MarsuApplication").isEmpty());
+        Assert.assertEquals(references.getProperty("MarsuApplication"), references.getProperty("MarsuApplication2"));
+        for (String entry : references.getProperty("MarsuApplication").split(","))
+        {
+            Assert.assertTrue(new File(storeDir, entry).isFile());
+        }
+        Assert.assertFalse(new File("../jqm-tests/jqm-test-datetimemavenjarinlib/target/libFromJar").exists());
+
+        // Nodes sharing a temporary directory do not share a store.
+        Assert.assertFalse(storeDir.equals(LibraryStore.getDirectory(TestHelpers.nodeMix)));
+    }
+
+    @Test
+    public void testLibStoreDeletedOwners() throws Exception
+    {
+        File storeDir = new File("target/libstoretest");
+        File jar = new File("../jqm-tests/jqm-test-datetimemavenjarinlib/target/test.jar");
+        LibraryStore store = LibraryStore.get(storeDir);
+
+        File[] files = store.putLibraries("MarsuApplication", jar);
+        store.putLibraries("MarsuApplication2", jar);
+        Assert.assertTrue(files.length > 0);
+
+        // Entries stay as long as one owner is left.
+        store.retainOwners(Arrays.asList("MarsuApplication2"));
+        Assert.assertTrue(files[0].isFile());
+
+        // Unreferenced entries may still be used by running payloads, and are only deleted when collected.
+        store.retainOwners(new ArrayList<String>());
+        Assert.assertTrue(files[0].isFile());
+        store.collect();
+        for (File f : files)
+        {
+            Assert.assertFalse(f.exists());
+        }
+    }
+
     @Test
     public void testNoDependencyDefinition() throws Exception
     {
@@ -166,4 +231,76 @@ public class PackageTest extends JqmBaseTest
                 .withRemoteRepo(MavenRemoteRepositories.createRemoteRepository("marsu", "http://marsupilami.com", "default"))
                 .withMavenCentralRepo(false).resolve("com.enioka.jqm:marsu:1.1.4").withTransitivity().asFile();
     }
+
+    @Test
+    public void testMavenResolutionCache() throws Exception
+    {
+        // These coordinates exist in no repository: the job can only run if its resolution is read from the cache file.
+        String gav = "com.enioka.jqm:jqm-test-cached:1.0.0";
+        File jar = new File(FilenameUtils.concat(new File(TestHelpers.node.getRepo()).getAbsolutePath(),
+                "jqm-tests/jqm-test-pyl-nodep/target/test.jar"));
+        new File(FilenameUtils.concat(TestHelpers.node.getTmpDirectory(), LibraryResolverMaven.CACHE_FILE_NAME)).delete();
+        new LibraryResolverMaven().putInCache(TestHelpers.node, LibraryResolverMaven.getConfiguration(em).getCacheKey(gav),
+                new File[] { jar });
+
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, gav, TestHelpers.qVip, 42, "jqm-test-maven-cached", null, "Franquin",
+                "ModuleMachin", "other", "other", false, em, null, false, null, false, PathType.MAVEN);
+        JobRequest.create("jqm-test-maven-cached", null).submit();
+        addAndStartEngine();
+
+        TestHelpers.waitFor(1, 10000, em);
+        Assert.assertEquals(1, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+    }
+
+    @Test
+    public void testMavenResolutionCacheInvalidation() throws Exception
+    {
+        String gav = "com.enioka.jqm:jqm-test-cached:1.0.0";
+        File jar = new File(FilenameUtils.concat(new File(TestHelpers.node.getRepo()).getAbsolutePath(),
+                "jqm-tests/jqm-test-pyl-nodep/target/test.jar"));
+        File cacheFile = new File(FilenameUtils.concat(TestHelpers.node.getTmpDirectory(), LibraryResolverMaven.CACHE_FILE_NAME));
+        String key = LibraryResolverMaven.getConfiguration(em).getCacheKey(gav);
+
+        // Explicit invalidation, also removed from the file.
+        LibraryResolverMaven resolver = new LibraryResolverMaven();
+        resolver.putInCache(TestHelpers.node, key, new File[] { jar });
+        Assert.assertNotNull(resolver.getFromCache(TestHelpers.node, key));
+        resolver.clearCache(TestHelpers.node);
+        Assert.assertNull(resolver.getFromCache(TestHelpers.node, key));
+        Assert.assertNull(new LibraryResolverMaven().getFromCache(TestHelpers.node, key));
+
+        // A damaged entry is simply ignored.
+        Properties p = new Properties();
+        p.setProperty(key, "damaged" + File.pathSeparator + jar.getAbsolutePath());
+        Helpers.storeProperties(p, cacheFile, null);
+        Assert.assertNull(new LibraryResolverMaven().getFromCache(TestHelpers.node, key));
+    }
+
+    @Test
+    public void testClasspathPrewarm() throws Exception
+    {
+        CreationTools.createGlobalParameter("classpathPrewarmThreads", "2", em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-prewarm1", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qNormal,
+                42, "jqm-test-prewarm2", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/missing.jar", TestHelpers.qSlow,
+                42, "jqm-test-prewarm3", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        addAndStartEngine();
+
+        JqmEngine engine = engines.get("localhost");
+        for (int i = 0; i < 100 && engine.getClasspathPrewarmDurationMs() < 0; i++)
+        {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(engine.getClasspathPrewarmDurationMs() >= 0);
+        Assert.assertEquals(0, engine.getClasspathPrewarmRemainingCount());
+        Assert.assertEquals(1, engine.getClasspathPrewarmFailedCount());
+
+        // Launches simply use what was resolved.
+        JobRequest.create("jqm-test-prewarm1", null).submit();
+        TestHelpers.waitFor(1, 10000, em);
+        Assert.assertEquals(1, TestHelpers.getOkCount(em));
+    }
 }
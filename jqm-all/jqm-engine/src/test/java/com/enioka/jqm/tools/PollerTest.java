@@ -0,0 +1,73 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.jpamodel.Queue;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
+
+public class PollerTest extends JqmBaseTest
+{
+    @Test
+    public void testEnqueueWakesUpPoller() throws Exception
+    {
+        // A queue polled only once an hour: the job can only run quickly if the enqueue wakes up the poller.
+        Queue q = CreationTools.initQueue("RarelyPolledQueue", "test", 42, em);
+        CreationTools.createDeploymentParameter(TestHelpers.node, 1, 3600000, q, em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", q, 42, "jqm-test-wakeup",
+                null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        addAndStartEngine();
+        sleep(2); // let the poller do its first (and only) regular loop
+
+        JobRequest.create("jqm-test-wakeup", null).submit();
+
+        TestHelpers.waitFor(1, 10000, em);
+        Assert.assertEquals(1, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+    }
+
+    @Test
+    public void testAdaptivePollingInterval() throws Exception
+    {
+        CreationTools.createGlobalParameter("pollerAdaptiveInterval", "true", em);
+        CreationTools.createGlobalParameter("pollerMinIntervalMs", "0", em); // too low, must be raised by the engine
+        CreationTools.createGlobalParameter("pollerMaxIntervalMs", "4000", em);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-adaptive", null, "Franquin", "ModuleMachin", "other", "other", false, em);
+        addAndStartEngine();
+
+        // Idle queues: the pollers back off, but must still be seen as polling.
+        sleep(6);
+        Assert.assertTrue(engines.get("localhost").isAllPollersPolling());
+        for (QueuePoller p : engines.get("localhost").getPollers())
+        {
+            Assert.assertTrue(p.getCurrentPollingIntervalMilliseconds() > p.getPollingIntervalMilliseconds());
+            Assert.assertTrue(p.getCurrentPollingIntervalMilliseconds() <= 4000);
+        }
+
+        for (int i = 0; i < 5; i++)
+        {
+            JobRequest.create("jqm-test-adaptive", null).submit();
+        }
+        TestHelpers.waitFor(5, 10000, em);
+        Assert.assertEquals(5, TestHelpers.getOkCount(em));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(em));
+    }
+}
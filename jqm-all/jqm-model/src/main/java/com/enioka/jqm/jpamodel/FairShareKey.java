@@ -0,0 +1,28 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.jpamodel;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * The field of the {@link JobInstance}s used to share the slots of a {@link Queue} between its users when fair share is enabled on this
+ * queue.
+ */
+public enum FairShareKey {
+    /** Job instances are interleaved by {@link JobInstance#getUserName()}. **/
+    USER,
+    /** Job instances are interleaved by {@link JobInstance#getApplication()}. **/
+    APPLICATION
+}
@@ -88,6 +88,9 @@ public class History implements Serializable
     @Column
     private Integer progress;
 
+    @Column(name = "priority")
+    private Integer priority;
+
     /***********/
     /* TIME */
 
@@ -469,6 +472,23 @@ public class History implements Serializable
         this.progress = progress;
     }
 
+    /**
+     * The priority the {@link JobInstance} had inside its queue when it was run (including aging). NULL for instances created before
+     * priorities existed.
+     */
+    public Integer getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * See {@link #getPriority()}
+     */
+    public void setPriority(Integer priority)
+    {
+        this.priority = priority;
+    }
+
     /**
      * True if the {@link JobInstance} was run in Highlander mode (i.e. never more than one concurrent execution of the same {@link JobDef}
      * inside the whole cluster)
@@ -84,6 +84,12 @@ public class JobDef implements Serializable
     @Column(name = "maxTimeRunning")
     private Integer maxTimeRunning;
 
+    @Column(name = "cpuUnits")
+    private Integer cpuUnits;
+
+    @Column(name = "memoryMb")
+    private Integer memoryMb;
+
     @Column(nullable = false, name = "applicationName", unique = true, length = 100)
     private String applicationName;
 
@@ -195,6 +201,40 @@ public class JobDef implements Serializable
         this.maxTimeRunning = maxTimeRunning;
     }
 
+    /**
+     * An optional weight of the job instances of this {@link JobDef}, in abstract CPU units. Each running instance consumes this amount of
+     * the {@link Node#getCpuUnits()} budget of the node running it. Null means 0.
+     */
+    public Integer getCpuUnits()
+    {
+        return cpuUnits;
+    }
+
+    /**
+     * See {@link #getCpuUnits()}
+     */
+    public void setCpuUnits(Integer cpuUnits)
+    {
+        this.cpuUnits = cpuUnits;
+    }
+
+    /**
+     * An optional weight of the job instances of this {@link JobDef}, in MB of memory. Each running instance consumes this amount of the
+     * {@link Node#getMemoryMb()} budget of the node running it. Null means 0.
+     */
+    public Integer getMemoryMb()
+    {
+        return memoryMb;
+    }
+
+    /**
+     * See {@link #getMemoryMb()}
+     */
+    public void setMemoryMb(Integer memoryMb)
+    {
+        this.memoryMb = memoryMb;
+    }
+
     /**
      * The applicative key of the {@link JobDef}. {@link JobDef} are always retrieved through this name.<br>
      * Max length is 100.
@@ -46,7 +46,8 @@ import org.hibernate.annotations.Index;
  */
 @Entity
 @Table(name = "JobInstance")
-@org.hibernate.annotations.Table(indexes = @Index(name = "idx_lock_jobinstance_2", columnNames = { "jd_id", "state" }), appliesTo = "JobInstance")
+@org.hibernate.annotations.Table(indexes = { @Index(name = "idx_lock_jobinstance_2", columnNames = { "jd_id", "state" }),
+        @Index(name = "idx_dequeue_jobinstance_1", columnNames = { "queue_id", "state", "priority", "internalPosition" }) }, appliesTo = "JobInstance")
 public class JobInstance implements Serializable
 {
     private static final long serialVersionUID = -7710486847228806301L;
@@ -90,6 +91,14 @@ public class JobInstance implements Serializable
     @Column(name = "internalPosition", nullable = false)
     private double internalPosition;
 
+    // Not nullable (with a database default for rows existing before the column) so that the dequeue index can serve the queue order.
+    @Column(name = "priority", nullable = false, columnDefinition = "INTEGER DEFAULT 0")
+    private Integer priority = 0;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "priorityAgingDate")
+    private Calendar priorityAgingDate;
+
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name = "creationDate")
     private Calendar creationDate;
@@ -125,8 +134,10 @@ public class JobInstance implements Serializable
         if (this.state.equals(State.SUBMITTED))
         {
             return em
-                    .createQuery("SELECT COUNT(ji) FROM JobInstance ji WHERE ji.internalPosition < :p AND ji.state = 'SUBMITTED'",
-                            Long.class).setParameter("p", this.internalPosition).getSingleResult().intValue() + 1;
+                    .createQuery(
+                            "SELECT COUNT(ji) FROM JobInstance ji WHERE (ji.priority > :pr OR (ji.priority = :pr AND ji.internalPosition < :p)) "
+                                    + "AND ji.state = 'SUBMITTED'", Long.class).setParameter("p", this.internalPosition)
+                    .setParameter("pr", this.priority).getSingleResult().intValue() + 1;
         }
         else
         {
@@ -305,6 +316,39 @@ public class JobInstance implements Serializable
         this.internalPosition = internalPosition;
     }
 
+    /**
+     * The priority of the request inside its queue. Job instances with a higher priority are run before those with a lower one, whatever
+     * their {@link #getInternalPosition()}. Default is 0. May be raised over time by the engines if priority aging is enabled.
+     */
+    public Integer getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * See {@link #getPriority()}
+     */
+    public void setPriority(Integer priority)
+    {
+        this.priority = priority;
+    }
+
+    /**
+     * The last time the priority was raised by aging (or NULL if it never was). Only used when priority aging is enabled.
+     */
+    public Calendar getPriorityAgingDate()
+    {
+        return priorityAgingDate;
+    }
+
+    /**
+     * See {@link #getPriorityAgingDate()}
+     */
+    public void setPriorityAgingDate(Calendar priorityAgingDate)
+    {
+        this.priorityAgingDate = priorityAgingDate;
+    }
+
     /**
      * Only set when a job request is created by a running job, in which case it contains the job {@link JobInstance} ID.
      */
@@ -85,6 +85,12 @@ public class Node
 
     private Boolean enabled = true;
 
+    @Column(name = "cpuUnits")
+    private Integer cpuUnits;
+
+    @Column(name = "memoryMb")
+    private Integer memoryMb;
+
     /**
      * A technical ID without any meaning. Generated by the database.
      */
@@ -360,4 +366,38 @@ public class Node
     {
         this.enabled = enabled;
     }
+
+    /**
+     * The optional CPU budget of the node, in the same abstract units as {@link JobDef#getCpuUnits()}. A job instance is only started if the
+     * sum of the weights of the running job instances (including the new one) stays within the budget. Null means no limit.
+     */
+    public Integer getCpuUnits()
+    {
+        return cpuUnits;
+    }
+
+    /**
+     * See {@link #getCpuUnits()}
+     */
+    public void setCpuUnits(Integer cpuUnits)
+    {
+        this.cpuUnits = cpuUnits;
+    }
+
+    /**
+     * The optional memory budget of the node, in MB, used with {@link JobDef#getMemoryMb()} the same way as {@link #getCpuUnits()}. Null
+     * means no limit.
+     */
+    public Integer getMemoryMb()
+    {
+        return memoryMb;
+    }
+
+    /**
+     * See {@link #getMemoryMb()}
+     */
+    public void setMemoryMb(Integer memoryMb)
+    {
+        this.memoryMb = memoryMb;
+    }
 }
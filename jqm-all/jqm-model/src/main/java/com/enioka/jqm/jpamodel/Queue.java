@@ -25,6 +25,8 @@ import java.util.List;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -57,6 +59,10 @@ public class Queue implements Serializable
     @Column(name = "defaultQueue")
     private boolean defaultQueue;
 
+    @Column(length = 20, name = "fairShareKey")
+    @Enumerated(EnumType.STRING)
+    private FairShareKey fairShareKey;
+
     @OneToMany(mappedBy = "queue", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private List<JobDef> jobdefs = new ArrayList<JobDef>();
 
@@ -127,6 +133,24 @@ public class Queue implements Serializable
         this.defaultQueue = defaultQueue;
     }
 
+    /**
+     * If not null, the slots of the queue are shared between the different values of this {@link JobInstance} field (e.g. between users)
+     * instead of being given in strict queue order, so that a user with many waiting requests cannot block all the others. Default is null
+     * (strict order).
+     */
+    public FairShareKey getFairShareKey()
+    {
+        return fairShareKey;
+    }
+
+    /**
+     * See {@link #getFairShareKey()}
+     */
+    public void setFairShareKey(FairShareKey fairShareKey)
+    {
+        this.fairShareKey = fairShareKey;
+    }
+
     /**
      * Not used for now. Reserved. Should be the max time to wait inside the queue.
      */
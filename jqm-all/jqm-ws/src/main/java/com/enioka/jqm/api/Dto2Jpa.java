@@ -16,6 +16,7 @@
 package com.enioka.jqm.api;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -27,6 +28,7 @@ import org.apache.shiro.crypto.hash.Sha512Hash;
 import org.apache.shiro.util.ByteSource;
 
 import com.enioka.jqm.jpamodel.DeploymentParameter;
+import com.enioka.jqm.jpamodel.FairShareKey;
 import com.enioka.jqm.jpamodel.GlobalParameter;
 import com.enioka.jqm.jpamodel.JndiObjectResource;
 import com.enioka.jqm.jpamodel.JndiObjectResourceParameter;
@@ -120,6 +122,8 @@ class Dto2Jpa
         n.setLoapApiSimple(dto.getLoapApiSimple());
         n.setTmpDirectory(dto.getTmpDirectory());
         n.setEnabled(dto.getEnabled());
+        n.setCpuUnits(dto.getCpuUnits());
+        n.setMemoryMb(dto.getMemoryMb());
 
         // save
         n = em.merge(n);
@@ -179,6 +183,8 @@ class Dto2Jpa
         jpa.setModule(dto.getModule());
         jpa.setQueue(em.find(Queue.class, dto.getQueueId()));
         jpa.setMaxTimeRunning(dto.getReasonableRuntimeLimitMinute());
+        jpa.setCpuUnits(dto.getCpuUnits());
+        jpa.setMemoryMb(dto.getMemoryMb());
         jpa.setSpecificIsolationContext(dto.getSpecificIsolationContext());
         jpa.setHiddenJavaClasses(dto.getHiddenJavaClasses());
         jpa.setChildFirstClassLoader(dto.isChildFirstClassLoader());
@@ -346,6 +352,7 @@ class Dto2Jpa
         jpa.setDefaultQueue(dto.isDefaultQueue());
         jpa.setDescription(dto.getDescription());
         jpa.setName(dto.getName());
+        jpa.setFairShareKey(getFairShareKey(dto.getFairShareKey()));
         jpa.setTimeToLive(-1);
 
         // save
@@ -355,6 +362,23 @@ class Dto2Jpa
         return jpa;
     }
 
+    private static FairShareKey getFairShareKey(String key)
+    {
+        if (key == null || key.isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            return FairShareKey.valueOf(key);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ErrorDto("Invalid fair share key " + key + ". Allowed values are " + Arrays.toString(FairShareKey.values()), "", 4,
+                    Status.BAD_REQUEST);
+        }
+    }
+
     private static RUser setJpa(EntityManager em, RUserDto dto)
     {
         RUser jpa = null;
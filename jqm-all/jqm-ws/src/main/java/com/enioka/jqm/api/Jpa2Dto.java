@@ -103,6 +103,8 @@ public class Jpa2Dto
         res.setTmpDirectory(n.getTmpDirectory());
         res.setReportsRunning(n.getLastSeenAlive() == null ? false : n.getLastSeenAlive().after(limit));
         res.setEnabled(n.getEnabled());
+        res.setCpuUnits(n.getCpuUnits());
+        res.setMemoryMb(n.getMemoryMb());
 
         return res;
     }
@@ -114,6 +116,7 @@ public class Jpa2Dto
         res.setDescription(q.getDescription());
         res.setId(q.getId());
         res.setName(q.getName());
+        res.setFairShareKey(q.getFairShareKey() == null ? null : q.getFairShareKey().toString());
 
         return res;
     }
@@ -182,6 +185,8 @@ public class Jpa2Dto
         res.setModule(d.getModule());
         res.setQueueId(d.getQueue().getId());
         res.setReasonableRuntimeLimitMinute(d.getMaxTimeRunning());
+        res.setCpuUnits(d.getCpuUnits());
+        res.setMemoryMb(d.getMemoryMb());
         res.setSpecificIsolationContext(d.getSpecificIsolationContext());
         res.setHiddenJavaClasses(d.getHiddenJavaClasses());
         res.setChildFirstClassLoader(d.isChildFirstClassLoader());
@@ -155,6 +155,14 @@ public class ServiceClient implements JqmClient
         JqmClientFactory.getClient().setJobQueuePosition(jobId, newPosition);
     }
 
+    @Override
+    @POST
+    @Path("ji/{jobId}/priority/{priority}")
+    public void setJobPriority(@PathParam("jobId") int jobId, @PathParam("priority") int priority)
+    {
+        JqmClientFactory.getClient().setJobPriority(jobId, priority);
+    }
+
     @Override
     @GET
     @Produces({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
@@ -42,6 +42,7 @@ public class JobDefDto implements Serializable
     private boolean highlander, enabled;
     private String jarPath;
     private Integer reasonableRuntimeLimitMinute;
+    private Integer cpuUnits, memoryMb;
     private boolean childFirstClassLoader;
     private String hiddenJavaClasses;
     private String specificIsolationContext;
@@ -239,4 +240,24 @@ public class JobDefDto implements Serializable
 	{
 		this.specificIsolationContext = specificIsolationContext;
 	}
+
+	public Integer getCpuUnits()
+	{
+		return cpuUnits;
+	}
+
+	public void setCpuUnits(Integer cpuUnits)
+	{
+		this.cpuUnits = cpuUnits;
+	}
+
+	public Integer getMemoryMb()
+	{
+		return memoryMb;
+	}
+
+	public void setMemoryMb(Integer memoryMb)
+	{
+		this.memoryMb = memoryMb;
+	}
 }
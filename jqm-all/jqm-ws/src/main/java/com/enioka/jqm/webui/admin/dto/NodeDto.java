@@ -38,6 +38,7 @@ public class NodeDto implements Serializable
     private Boolean stop = false, enabled = true;
     private Boolean loapApiSimple, loadApiClient, loadApiAdmin;
     private Boolean reportsRunning;
+    private Integer cpuUnits, memoryMb;
 
     public Integer getId()
     {
@@ -208,4 +209,24 @@ public class NodeDto implements Serializable
     {
         this.enabled = enabled;
     }
+
+    public Integer getCpuUnits()
+    {
+        return cpuUnits;
+    }
+
+    public void setCpuUnits(Integer cpuUnits)
+    {
+        this.cpuUnits = cpuUnits;
+    }
+
+    public Integer getMemoryMb()
+    {
+        return memoryMb;
+    }
+
+    public void setMemoryMb(Integer memoryMb)
+    {
+        this.memoryMb = memoryMb;
+    }
 }
@@ -28,6 +28,7 @@ public class QueueDto implements Serializable
     private String name;
     private String description;
     private boolean defaultQueue;
+    private String fairShareKey;
 
     public Integer getId()
     {
@@ -68,4 +69,14 @@ public class QueueDto implements Serializable
     {
         this.defaultQueue = defaultQueue;
     }
+
+    public String getFairShareKey()
+    {
+        return fairShareKey;
+    }
+
+    public void setFairShareKey(String fairShareKey)
+    {
+        this.fairShareKey = fairShareKey;
+    }
 }